@@ -0,0 +1,91 @@
+/**
+ * DocumentText.java
+ *
+ * Read-only CharSequence view of a range of a Swing Document that never copies the document into a String. Characters
+ * are read through a window filled by Document.getText with a partial-return Segment, which for a piece table hands
+ * out the buffers themselves, and each refill holds the document's read lock only for the duration of that call.
+ * A view keeps its window in fields, so it must not be shared between threads.
+ */
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+import java.util.concurrent.CancellationException;
+
+public class DocumentText implements CharSequence {
+    private static final int WINDOW_CHARS = 16 * 1024; // Chars requested per refill, the document may return fewer
+    private static final int LOOK_BEHIND_CHARS = 1024; // Refills start a little before the requested char since matchers also step backwards
+
+    private final Document document;
+    private final int start;
+    private final int length;
+    private final Segment segment = new Segment();
+    private int windowStart; // Document offsets covered by segment
+    private int windowEnd;
+
+    public DocumentText(Document document) {
+        this(document, 0, document.getLength());
+    }
+
+    public DocumentText(Document document, int start, int length) {
+        this.document = document;
+        this.start = start;
+        this.length = length;
+        segment.setPartialReturn(true);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        int offset = start + index;
+        if (offset < windowStart || offset >= windowEnd) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+            }
+            fill(Math.max(start, offset - LOOK_BEHIND_CHARS));
+            if (offset >= windowEnd) { // The text before offset came from a different piece, start the window at offset itself
+                fill(offset);
+            }
+        }
+        return segment.array[segment.offset + offset - windowStart];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        }
+        return new DocumentText(document, this.start + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        String[] text = new String[1];
+        document.render(() -> {
+            try {
+                text[0] = document.getText(start, length);
+            } catch (BadLocationException badLocation) {
+                throw new CancellationException("Document changed while it was being read");
+            }
+        });
+        return text[0];
+    }
+
+    // Points the window at the text from offset on, as far as the document can return without copying
+    private void fill(int offset) {
+        int count = Math.min(WINDOW_CHARS, start + length - offset);
+        document.render(() -> {
+            try {
+                document.getText(offset, count, segment);
+            } catch (BadLocationException badLocation) { // The document shrank under the view, whoever is reading is about to be told to start over
+                throw new CancellationException("Document changed while it was being read");
+            }
+        });
+        windowStart = offset;
+        windowEnd = offset + segment.count;
+    }
+}
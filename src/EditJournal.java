@@ -0,0 +1,369 @@
+/**
+ * EditJournal.java
+ *
+ * Autosave for the text area. Every insert and remove made to the document is queued on the EDT as it happens, and a
+ * background thread appends the queued edits to a journal next to the file once a second and forces them to disk.
+ * Each batch is written as one frame carrying its length and checksum, so a crash part way through a write only loses
+ * that last batch. When a file is opened again with its journal still there, the edits can be replayed over it to get
+ * back to where the editor stopped. Saving the document starts a new, empty journal. A replace-all is journaled as the
+ * ranges it replaced, not as the span of the document its events cover.
+ */
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+public class EditJournal {
+    private static final long FLUSH_MILLIS = Long.getLong("texteditor.autosaveMillis", 1000); // How often queued edits are written and forced to disk
+    private static final int MAGIC = 0x54454A31; // "TEJ1"
+    private static final Path UNTITLED = Paths.get(System.getProperty("user.home"), ".texteditor-untitled.journal"); // Journal of a document not saved to any file yet
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Autosave");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final DocumentListener listener = new DocumentListener() {
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            Document document = e.getDocument();
+            try {
+                if (isReplacing(document)) {
+                    journalReplaced((PieceTableDocument) document);
+                } else {
+                    queue(new Edit(e.getOffset(), document.getText(e.getOffset(), e.getLength()), 0));
+                }
+            } catch (BadLocationException badLocation) {
+                badLocation.printStackTrace();
+            }
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            if (isReplacing(e.getDocument())) {
+                journalReplaced((PieceTableDocument) e.getDocument());
+            } else {
+                queue(new Edit(e.getOffset(), null, e.getLength()));
+            }
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+    };
+    private final List<Edit> pending = new ArrayList<>(); // Edits made since the last flush, guarded by itself
+    private Document document; // Document being journaled, touched on the EDT only
+    private Path followed; // Journal of document, touched on the EDT only
+    // Owned by the writer thread
+    private Path journal;
+    private BasicFileAttributes base; // The file the edits apply to, as it was when journaling started
+    private FileChannel channel;
+
+    public EditJournal() {
+        writer.scheduleWithFixedDelay(this::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Starts journaling the edits made to document over file, or over an empty text when file is null. Edits are
+    // appended to a journal already there, which is how journaling carries on after a recovery
+    public void follow(Document document, Path file) {
+        stop();
+        start(document, file, null);
+    }
+
+    // Tells the journal that document was just written to file, whose journal starts over empty
+    public void saved(Document document, Path file) {
+        Path previous = followed != null ? followed : journalFor(file); // The untitled journal when a new document is saved for the first time
+        synchronized (pending) {
+            pending.clear(); // Already in the saved file
+        }
+        if (this.document != null) {
+            this.document.removeDocumentListener(listener);
+        }
+        start(document, file, previous);
+    }
+
+    // Stops journaling, for instance while another file is being loaded. Edits made so far are still written out
+    public void stop() {
+        if (document != null) {
+            document.removeDocumentListener(listener);
+            document = null;
+            followed = null;
+        }
+        writer.execute(() -> {
+            flush();
+            close();
+            journal = null;
+        });
+    }
+
+    // Writes out everything queued and waits for it, called when the editor closes
+    public void shutdown() {
+        stop();
+        try {
+            writer.submit(() -> { }).get(); // Tasks run in order, so this returns once the flush above is done
+        } catch (InterruptedException | ExecutionException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Whether file has a journal with edits that still apply to it, file being null for the untitled document
+    public static boolean canRecover(Path file) {
+        try {
+            return !read(file).isEmpty();
+        } catch (IOException ioException) {
+            return false;
+        }
+    }
+
+    // Replays the journaled edits of file over document, which must hold the text of file. Returns how many were applied
+    public static int recover(Document document, Path file) throws IOException {
+        List<Edit> edits = read(file);
+        try {
+            for (Edit edit : edits) {
+                if (edit.text != null) {
+                    document.insertString(edit.offset, edit.text, null);
+                } else {
+                    document.remove(edit.offset, edit.length);
+                }
+            }
+        } catch (BadLocationException badLocation) {
+            throw new IOException("Journal does not match " + (file == null ? "the document" : file), badLocation);
+        }
+        return edits.size();
+    }
+
+    // Drops the journal of file without replaying it
+    public static void discard(Path file) {
+        deleteQuietly(journalFor(file));
+    }
+
+    // Switches to document. When previous is given, it and any journal of file are dropped in the same step on the
+    // writer thread, so no edit can be flushed into a journal about to be deleted
+    private void start(Document document, Path file, Path previous) {
+        this.document = document;
+        document.addDocumentListener(listener);
+        followed = journalFor(file);
+        writer.execute(() -> {
+            if (previous != null) {
+                close();
+                deleteQuietly(previous);
+                deleteQuietly(journalFor(file));
+            }
+            journal = journalFor(file);
+            base = file == null ? null : readAttributes(file);
+        });
+    }
+
+    // A replace is journaled range by range once its last event leaves the new text of every range in the document,
+    // instead of as the removal and insertion of the whole span its events cover
+    private void journalReplaced(PieceTableDocument document) {
+        if (!document.isReplaceComplete()) {
+            return;
+        }
+        List<Edit> edits = new ArrayList<>();
+        document.visitReplaced((offset, removedLength, insertedLength) -> {
+            if (removedLength > 0) {
+                edits.add(new Edit(offset, null, removedLength));
+            }
+            if (insertedLength > 0) {
+                edits.add(new Edit(offset, getText(document, offset, insertedLength), 0));
+            }
+        });
+        synchronized (pending) {
+            pending.addAll(edits);
+        }
+    }
+
+    private static boolean isReplacing(Document document) {
+        return document instanceof PieceTableDocument && ((PieceTableDocument) document).isReplacing();
+    }
+
+    private static String getText(Document document, int offset, int length) {
+        try {
+            return document.getText(offset, length);
+        } catch (BadLocationException badLocation) {
+            throw new IllegalStateException(badLocation);
+        }
+    }
+
+    private void queue(Edit edit) {
+        synchronized (pending) {
+            pending.add(edit);
+        }
+    }
+
+    // Appends the queued edits to the journal as one frame and forces it to disk, runs on the writer thread
+    private void flush() {
+        List<Edit> edits;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            edits = new ArrayList<>(pending);
+            pending.clear();
+        }
+        if (journal == null) { // Not following a document, the edits were made while stopping
+            return;
+        }
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                if (channel.size() == 0) {
+                    writeHeader();
+                }
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (Edit edit : edits) {
+                out.writeInt(edit.offset);
+                if (edit.text != null) {
+                    out.writeInt(edit.text.length());
+                    out.writeChars(edit.text);
+                } else {
+                    out.writeInt(-edit.length); // Removals are stored as negative lengths
+                }
+            }
+            writeFrame(bytes.toByteArray());
+            channel.force(false);
+        } catch (IOException ioException) {
+            ioException.printStackTrace();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(20);
+        header.putInt(MAGIC);
+        header.putLong(base == null ? -1 : base.size());
+        header.putLong(base == null ? -1 : base.lastModifiedTime().toMillis());
+        write(header.flip());
+    }
+
+    // Length, payload and checksum of one batch, a frame cut short by a crash fails its checksum and is ignored
+    private void writeFrame(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer frame = ByteBuffer.allocate(payload.length + 12);
+        frame.putInt(payload.length).put(payload).putLong(crc.getValue());
+        write(frame.flip());
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ioException) {
+                ioException.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+
+    // Reads every complete frame of the journal of file. A journal written over another version of file is dropped
+    private static List<Edit> read(Path file) throws IOException {
+        Path journal = journalFor(file);
+        List<Edit> edits = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal)))) {
+            long journalSize = Files.size(journal);
+            long size = -1;
+            long modified = -1;
+            if (file != null) {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                size = attributes.size();
+                modified = attributes.lastModifiedTime().toMillis();
+            }
+            if (in.readInt() != MAGIC || in.readLong() != size || in.readLong() != modified) {
+                return edits;
+            }
+            while (true) {
+                int payloadLength = in.readInt();
+                if (payloadLength < 0 || payloadLength > journalSize) { // Garbage where a frame length should be
+                    return edits;
+                }
+                byte[] payload = new byte[payloadLength];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (in.readLong() != crc.getValue()) {
+                    return edits;
+                }
+                DataInputStream frame = new DataInputStream(new ByteArrayInputStream(payload));
+                while (frame.available() > 0) {
+                    int offset = frame.readInt();
+                    int length = frame.readInt();
+                    if (length < 0) {
+                        edits.add(new Edit(offset, null, -length));
+                    } else {
+                        char[] text = new char[length];
+                        for (int i = 0; i < length; i++) {
+                            text[i] = frame.readChar();
+                        }
+                        edits.add(new Edit(offset, new String(text), 0));
+                    }
+                }
+            }
+        } catch (NoSuchFileException | EOFException endOfJournal) { // No journal, or the end of the last complete frame
+            return edits;
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException ioException) {
+            return null;
+        }
+    }
+
+    private static Path journalFor(Path file) {
+        return file == null ? UNTITLED : file.resolveSibling("." + file.getFileName() + ".journal");
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ioException) {
+            ioException.printStackTrace();
+        }
+    }
+
+    private static final class Edit {
+        final int offset;
+        final String text; // Inserted text, null for a removal
+        final int length; // Removed length
+
+        Edit(int offset, String text, int length) {
+            this.offset = offset;
+            this.text = text;
+            this.length = length;
+        }
+    }
+}
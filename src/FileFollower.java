@@ -0,0 +1,264 @@
+/**
+ * FileFollower.java
+ *
+ * Follows a file that keeps growing, like a log being written, the way tail -F does. A background thread waits on a
+ * WatchService for changes to the file's directory, and also checks the file's size every POLL_MILLIS in case the
+ * file system does not report changes. Only the bytes appended since the last read are read, through a FileChannel
+ * from the last offset, and decoded by one decoder that keeps a char cut in half by the end of a read for the next one.
+ * Text is handed to the EDT at most once a frame, so a fast writer is appended in a few large inserts instead of many
+ * small ones. A file that is truncated or replaced, as log rotation does, is followed again from its start.
+ */
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+public class FileFollower {
+    public static final int MAX_LINES = Integer.getInteger("texteditor.followMaxLines", 0); // Lines kept while following, the oldest are dropped past this. 0 keeps them all
+    private static final long POLL_MILLIS = 1000; // Longest wait between two checks of the file's size
+    private static final long FRAME_MILLIS = 16; // Shortest time between two appends to the document
+    private static final int BUFFER_BYTES = 64 * 1024; // Bytes read from the file at a time
+    private static final int BATCH_CHARS = 1024 * 1024; // Most chars handed to the EDT at once when a lot was appended
+
+    private final Path path;
+    private final JTextArea textArea;
+    private final Document document; // Only this document is appended to, the text area may have moved on
+    private final Thread thread;
+    private volatile boolean stopped;
+    private final StringBuilder pending = new StringBuilder(); // Decoded text waiting for the EDT, guarded by itself
+    private boolean restart; // Whether the document must be cleared before pending is appended, guarded by pending
+    private boolean scheduled; // Whether an append is already queued on the EDT, guarded by pending
+    private boolean droppedLines; // Whether lines past MAX_LINES were dropped from the document, touched on the EDT only
+    // Owned by the follower thread
+    private volatile long position; // Offset of the first byte not decoded yet, read by other threads
+    private Object fileKey; // Identity of the file being read, changes when the path is replaced by a new file
+    private FileChannel channel;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_BYTES);
+
+    // Appends what is written to path after its first position bytes to the document of textArea, which must hold the
+    // text of those bytes. Following starts right away
+    public FileFollower(Path path, JTextArea textArea, TextEncoding encoding, long position) {
+        this.path = path;
+        this.textArea = textArea;
+        this.position = position;
+        document = textArea.getDocument();
+        decoder = encoding.newDecoder();
+        thread = new Thread(this::follow, "Follow " + path.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Offset in the file up to which it has been read and decoded
+    public long getPosition() {
+        return position;
+    }
+
+    // Whether the oldest lines were dropped, after which the document no longer holds the file from its start
+    public boolean hasDroppedLines() {
+        return droppedLines;
+    }
+
+    // Stops reading the file and appends the text already read, so the document holds the file up to getPosition once
+    // this returns. Runs on the EDT
+    public void stop() {
+        stopped = true;
+        thread.interrupt();
+        try {
+            thread.join(POLL_MILLIS); // Interrupted reads and waits end right away
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        append(); // An append already queued then finds nothing left to add
+    }
+
+    private void follow() {
+        WatchService watcher = null;
+        try {
+            try {
+                watcher = FileSystems.getDefault().newWatchService();
+                path.toAbsolutePath().getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException | UnsupportedOperationException noWatching) { // Polling alone still follows the file, a little later
+                watcher = null;
+            }
+            open();
+            while (!stopped) {
+                readAppended();
+                Thread.sleep(FRAME_MILLIS); // Whatever is written meanwhile is read in one go
+                if (watcher == null) {
+                    Thread.sleep(POLL_MILLIS);
+                    continue;
+                }
+                WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS); // Any change in the directory wakes the thread, the size check tells whether it was this file
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        } catch (InterruptedException | ClosedByInterruptException | ClosedWatchServiceException stoppedWhileWaiting) {
+            // Stopped
+        } catch (IOException ioException) {
+            ioException.printStackTrace();
+        } finally {
+            close(watcher);
+            close(channel);
+        }
+    }
+
+    // Reads and decodes every byte added since the last read, starting over when the file was truncated or replaced
+    private void readAppended() throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException rotated) { // Moved away, the new file has not been created yet
+            return;
+        }
+        if (channel == null || attributes.size() < position || !Objects.equals(attributes.fileKey(), fileKey)) {
+            close(channel);
+            open();
+            if (channel == null) {
+                return;
+            }
+            startOver();
+        }
+        while (position + bytes.position() < channel.size() && !stopped) {
+            int read = channel.read(bytes, position + bytes.position()); // After the bytes of a char cut in half by the last read
+            if (read <= 0) {
+                break;
+            }
+            bytes.flip();
+            while (decoder.decode(bytes, chars, false).isOverflow()) {
+                drain();
+            }
+            position += bytes.position(); // Counts only what was decoded, which drain has handed on even when stopped
+            bytes.compact();
+            drain();
+        }
+        hand();
+    }
+
+    private void open() throws IOException {
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        } catch (NoSuchFileException notThereYet) {
+            channel = null;
+        }
+    }
+
+    // Follows the file again from its start, dropping the text read from the file it replaced
+    private void startOver() {
+        position = 0;
+        bytes.clear();
+        chars.clear();
+        decoder.reset();
+        synchronized (pending) {
+            pending.setLength(0);
+            restart = true;
+        }
+    }
+
+    // Moves the decoded chars to pending and empties the buffer for reuse. Once a full batch is waiting, reading pauses
+    // until the EDT has taken it, so a writer faster than the document can take text is not buffered without bound.
+    // Stopping ends the pause but not the decoding of the bytes already read, which stop then appends
+    private void drain() {
+        chars.flip();
+        synchronized (pending) {
+            pending.append(chars);
+            chars.clear();
+            if (pending.length() >= BATCH_CHARS) {
+                hand();
+                while (pending.length() >= BATCH_CHARS && !stopped) {
+                    try {
+                        pending.wait();
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt(); // The follow loop ends on it once this read is decoded
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    // Queues an append of the pending text on the EDT unless one is queued already, which then takes this text too
+    private void hand() {
+        synchronized (pending) {
+            if ((pending.length() > 0 || restart) && !scheduled) {
+                scheduled = true;
+                SwingUtilities.invokeLater(this::append);
+            }
+        }
+    }
+
+    // Appends the pending text to the document, keeping the caret at the end when it was there so new lines scroll into
+    // view, and drops the oldest lines past MAX_LINES. Runs on the EDT
+    private void append() {
+        String text;
+        boolean clear;
+        synchronized (pending) {
+            text = pending.toString();
+            clear = restart;
+            pending.setLength(0);
+            restart = false;
+            scheduled = false;
+            pending.notifyAll();
+        }
+        if (textArea.getDocument() != document) {
+            return;
+        }
+        try {
+            boolean atEnd = textArea.getCaretPosition() == document.getLength();
+            if (clear) {
+                document.remove(0, document.getLength());
+            }
+            document.insertString(document.getLength(), text, null);
+            LineIndex lines = LineIndex.of(document);
+            if (MAX_LINES > 0 && lines.lineCount() > MAX_LINES) {
+                document.remove(0, lines.lineStart(lines.lineCount() - MAX_LINES));
+                droppedLines = true;
+                if (document instanceof PieceTableDocument) { // The piece table would otherwise keep every char appended
+                    ((PieceTableDocument) document).compact();
+                }
+            }
+            if (atEnd) {
+                textArea.setCaretPosition(document.getLength());
+            }
+        } catch (BadLocationException badLocation) {
+            badLocation.printStackTrace();
+        }
+    }
+
+    private static void close(AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception closeException) {
+            closeException.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * FileLoader.java
+ *
+ * Loads a file into the text area off the Event Dispatch Thread. The encoding is detected first and recorded on the
+ * loaded document so the file is saved the way it was read. Regular files are decoded by one decoder through a pair of
+ * reused buffers, in chunks that are appended to the document as they arrive, so the first screen shows up after the
+ * first chunk and no full-size byte array is ever allocated. Files above the large-file
+ * threshold are memory-mapped: their first page is shown as a preview right away while the page and line indexes are
+ * built in the background, then the mapped document replaces the preview. Progress is reported through the worker's
+ * progress property and a cancelled load puts the previous document back.
+ */
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+public class FileLoader extends SwingWorker<Document, String> {
+    public static final long LARGE_FILE_THRESHOLD = Long.getLong("texteditor.largeFileThreshold", 64L * 1024 * 1024); // Files bigger than this many bytes are memory-mapped instead of read
+    private static final int CHUNK_CHARS = 64 * 1024; // Characters decoded before they are handed to the document
+    private static final int BUFFER_BYTES = 64 * 1024; // Bytes read from the file at a time
+    private static final int PREVIEW_BYTES = 64 * 1024; // Bytes of a mapped file shown while it is being indexed
+
+    private final Path path;
+    private volatile TextEncoding encoding; // Detected in the background, recorded on the document when done
+    private volatile long loadedBytes; // Size of the file as it was read, where following it picks up
+    private volatile BasicFileAttributes attributes; // Read before the file, a change after that makes them out of date
+    private final JTextArea textArea;
+    private final Document previous; // Put back if loading fails or is cancelled
+    private final PieceTableDocument loading = new PieceTableDocument(); // Receives the streamed chunks or the preview
+
+    public FileLoader(Path path, JTextArea textArea) {
+        this.path = path;
+        this.textArea = textArea;
+        previous = textArea.getDocument();
+        textArea.setDocument(loading);
+        textArea.setEditable(false); // Nothing may be typed until the whole file is there
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public TextEncoding getEncoding() {
+        return encoding;
+    }
+
+    // Number of bytes of the file that made it into the document, byte order mark included
+    public long getLoadedBytes() {
+        return loadedBytes;
+    }
+
+    public BasicFileAttributes getAttributes() {
+        return attributes;
+    }
+
+    // Document shown before loading started, which the text area gets back if loading fails or is cancelled
+    public Document getPrevious() {
+        return previous;
+    }
+
+    @Override
+    protected Document doInBackground() throws IOException {
+        IncrementalSave.recover(path); // Finish a patch save cut short by a crash before reading the file
+        attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            encoding = TextEncoding.detect(channel);
+            channel.position(encoding.bomLength()); // The byte order mark is not part of the text
+            long size = channel.size();
+            if (size > LARGE_FILE_THRESHOLD) {
+                publish(preview(channel));
+                MappedText mappedText = new MappedText(path, encoding.getCharset(), encoding.bomLength(), bytes -> report(bytes, size, 0, 50));
+                loadedBytes = mappedText.getSize();
+                return new PieceTableDocument(mappedText, chars -> report(chars, mappedText.length(), 50, 100));
+            }
+            CharsetDecoder decoder = encoding.newDecoder();
+            ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_BYTES);
+            CharBuffer chars = CharBuffer.allocate(CHUNK_CHARS);
+            while (true) {
+                boolean endOfInput = channel.read(bytes) == -1;
+                bytes.flip();
+                while (decoder.decode(bytes, chars, endOfInput).isOverflow()) {
+                    publishChunk(chars);
+                }
+                if (endOfInput) {
+                    while (decoder.flush(chars).isOverflow()) {
+                        publishChunk(chars);
+                    }
+                    publishChunk(chars);
+                    loadedBytes = channel.position();
+                    return loading;
+                }
+                bytes.compact(); // Keeps a char cut in half by the end of the read for the next one
+                publishChunk(chars);
+                report(channel.position(), size, 0, 100);
+            }
+        }
+    }
+
+    @Override
+    protected void process(List<String> chunks) { // Chunks published while the EDT was busy arrive together and go in as one insert
+        try {
+            loading.insertString(loading.getLength(), chunks.size() == 1 ? chunks.get(0) : String.join("", chunks), null);
+        } catch (BadLocationException badLocation) {
+            badLocation.printStackTrace();
+        }
+    }
+
+    @Override
+    protected void done() {
+        try {
+            Document loaded = get();
+            encoding.recordOn(loaded);
+            if (loaded != loading) { // Swap the preview for the mapped document, keeping the caret where the user left it
+                int caret = textArea.getCaretPosition();
+                textArea.setDocument(loaded);
+                textArea.setCaretPosition(Math.min(caret, loaded.getLength()));
+            }
+        } catch (CancellationException cancelled) {
+            textArea.setDocument(previous);
+        } catch (InterruptedException | ExecutionException loadException) {
+            loadException.printStackTrace();
+            textArea.setDocument(previous);
+        } finally {
+            textArea.setEditable(true);
+        }
+    }
+
+    // Decodes the first page of the file, leaving out a character cut in half by the end of the page
+    private String preview(FileChannel channel) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(PREVIEW_BYTES);
+        while (bytes.hasRemaining() && channel.read(bytes) != -1) {
+            // Keep reading until the preview buffer is full
+        }
+        bytes.flip();
+        CharBuffer chars = CharBuffer.allocate(PREVIEW_BYTES);
+        encoding.newDecoder().decode(bytes, chars, false);
+        return chars.flip().toString();
+    }
+
+    // Hands the decoded chars to the document and empties the buffer for reuse
+    private void publishChunk(CharBuffer chars) {
+        chars.flip();
+        if (chars.hasRemaining()) {
+            publish(chars.toString());
+        }
+        chars.clear();
+    }
+
+    // Maps done out of total onto the [from, to] slice of the progress bar, abandoning the load once it is cancelled
+    private void report(long done, long total, int from, int to) {
+        if (isCancelled()) {
+            throw new CancellationException();
+        }
+        setProgress(total == 0 ? to : (int) (from + (to - from) * Math.min(done, total) / total)); // The line scan also counts the trailing newline
+    }
+}
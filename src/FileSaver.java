@@ -0,0 +1,209 @@
+/**
+ * FileSaver.java
+ *
+ * Saves the text area's document off the Event Dispatch Thread without ever holding the whole text as a String or a
+ * byte array. The document is read in segments, encoded into one reusable direct buffer and written through a
+ * FileChannel into a temp file next to the target. Once the temp file is forced to disk it is renamed over the target,
+ * so the file on disk is always either the old version or the complete new one, never a half-written mix. Large
+ * files whose edits leave every other byte where it was are patched in place by IncrementalSave instead. Text is
+ * written in the encoding it was loaded with, byte order mark included.
+ */
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+public class FileSaver extends SwingWorker<Path, Void> {
+    private static final int CHUNK_CHARS = 64 * 1024; // Characters read from the document at a time
+    private static final int BUFFER_BYTES = 256 * 1024; // Encoded bytes collected before each channel write
+
+    private final JTextArea textArea;
+    private final Document document;
+    private final Path path;
+    private final TextEncoding encoding;
+    private final boolean wasEditable;
+
+    // encoding is normally the one the document was loaded with, so the file is written back the way it was read
+    public FileSaver(JTextArea textArea, Path path, TextEncoding encoding) {
+        this.textArea = textArea;
+        this.path = path.toAbsolutePath();
+        this.encoding = encoding;
+        document = textArea.getDocument();
+        wasEditable = textArea.isEditable();
+        textArea.setEditable(false); // The document must not change while it is being written out
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Whether the save completed and the file on disk now holds the document
+    public boolean isSaved() {
+        try {
+            return isDone() && !isCancelled() && get() != null;
+        } catch (InterruptedException | ExecutionException saveException) {
+            return false;
+        }
+    }
+
+    @Override
+    protected Path doInBackground() throws IOException {
+        IncrementalSave incrementalSave = IncrementalSave.plan(document, path, encoding.getCharset());
+        if (incrementalSave != null) { // Only the edited byte ranges of the opened file are rewritten
+            incrementalSave.apply();
+            setProgress(100);
+            return path;
+        }
+        Path directory = path.getParent();
+        Path temp = Files.createTempFile(directory, "." + path.getFileName() + ".", ".tmp"); // Same directory, so the rename cannot cross file systems
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                write(channel);
+                channel.force(true); // The data must be on disk before the rename makes it the target
+            }
+            copyPermissions(temp);
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException notAtomic) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException saveException) { // Includes cancellation, the target is left untouched
+            Files.deleteIfExists(temp);
+            throw saveException;
+        }
+        forceDirectory(directory);
+        return path;
+    }
+
+    @Override
+    protected void done() {
+        try {
+            get();
+        } catch (CancellationException cancelled) {
+            // The temp file is already gone and the target was never touched
+        } catch (InterruptedException | ExecutionException saveException) {
+            saveException.printStackTrace();
+        } finally {
+            textArea.setEditable(wasEditable);
+        }
+    }
+
+    // Encodes the document segment by segment into channel
+    private void write(FileChannel channel) throws IOException {
+        CharsetEncoder encoder = encoding.newEncoder();
+        ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        bytes.put(encoding.getBom());
+        Segment segment = new Segment();
+        segment.setPartialReturn(true); // Lets a piece table or gap buffer hand out its own array instead of a copy
+        int length = document.getLength();
+        int offset = 0;
+        while (offset < length) {
+            int count = read(offset, Math.min(CHUNK_CHARS, length - offset), segment);
+            encode(encoder, CharBuffer.wrap(segment.array, segment.offset, count), bytes, channel, offset + count == length);
+            offset += count;
+            report(offset, length);
+        }
+        encode(encoder, CharBuffer.allocate(0), bytes, channel, true);
+        CoderResult result;
+        while ((result = encoder.flush(bytes)).isOverflow()) {
+            drain(bytes, channel);
+        }
+        checkResult(result);
+        drain(bytes, channel);
+    }
+
+    // Reads up to count characters at offset into segment under the document's read lock and returns how many to encode,
+    // leaving a high surrogate at the end for the next segment so the encoder never sees half a pair
+    private int read(int offset, int count, Segment segment) throws IOException {
+        BadLocationException[] failure = new BadLocationException[1];
+        document.render(() -> {
+            try {
+                document.getText(offset, count, segment);
+            } catch (BadLocationException badLocation) {
+                failure[0] = badLocation;
+            }
+        });
+        if (failure[0] != null) {
+            throw new IOException("Document changed while saving", failure[0]);
+        }
+        int read = segment.count;
+        if (read > 1 && offset + read < document.getLength() && Character.isHighSurrogate(segment.array[segment.offset + read - 1])) {
+            read--;
+        }
+        return read;
+    }
+
+    private static void encode(CharsetEncoder encoder, CharBuffer chars, ByteBuffer bytes, FileChannel channel, boolean endOfInput) throws IOException {
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isOverflow()) {
+                drain(bytes, channel);
+            } else {
+                checkResult(result);
+                return;
+            }
+        }
+    }
+
+    private static void checkResult(CoderResult result) throws CharacterCodingException {
+        if (result.isError()) { // Never happens with REPLACE, kept so a stricter encoder fails loudly
+            result.throwException();
+        }
+    }
+
+    // Writes out everything collected in bytes and empties it
+    private static void drain(ByteBuffer bytes, FileChannel channel) throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    // Gives the temp file the target's permissions, or the usual ones for a new file, instead of createTempFile's owner-only ones
+    private void copyPermissions(Path temp) throws IOException {
+        PosixFileAttributeView tempView = Files.getFileAttributeView(temp, PosixFileAttributeView.class);
+        if (tempView == null) { // Not a POSIX file system
+            return;
+        }
+        if (Files.exists(path)) {
+            tempView.setPermissions(Files.getPosixFilePermissions(path));
+        } else {
+            tempView.setPermissions(PosixFilePermissions.fromString("rw-r--r--"));
+        }
+    }
+
+    // Makes the rename itself durable where the platform allows opening a directory, best effort elsewhere
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException | UnsupportedOperationException unsupported) {
+            // Directories cannot be opened on every platform, the file itself is already on disk
+        }
+    }
+
+    // Updates the progress bar, abandoning the save once it is cancelled
+    private void report(long done, long total) {
+        if (isCancelled()) {
+            throw new CancellationException();
+        }
+        setProgress(total == 0 ? 100 : (int) (100 * done / total));
+    }
+}
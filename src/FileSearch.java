@@ -0,0 +1,395 @@
+/**
+ * FileSearch.java
+ *
+ * Find in Files: searches every file under a directory for the query of the search toolbar. The tree is walked on the
+ * worker's own thread, which hands each file to a fixed pool of searcher threads through a short queue, so a tree of
+ * any size never has more than a handful of files waiting and the walk slows down when the searchers fall behind.
+ * Files up to MAP_THRESHOLD bytes are read into a buffer each thread reuses, bigger ones are memory-mapped; mapping
+ * every small file would leave thousands of mappings waiting for the garbage collector. A file with a zero byte in its
+ * first bytes that does not look like UTF-16 is taken to be binary and skipped before any of it is decoded. Text is
+ * decoded and searched a window of whole lines at a time with the same matchers as the search toolbar, so memory use
+ * does not depend on the size of the files. Matches are published as each file is done and arrive on the EDT in
+ * batches, and cancelling the worker stops the walk and every searcher within a window. Once the directory has a
+ * TrigramIndex, only the files it names as candidates are searched, followed by the files changed since it was
+ * updated, which the walk finds from their sizes and modification times without reading them.
+ */
+
+import javax.swing.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+public class FileSearch extends SwingWorker<Void, FileSearch.Hit> {
+    public static final int MAX_HITS = Integer.getInteger("texteditor.findInFilesMaxHits", 100_000); // The search stops once this many matches were found
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final long MAP_THRESHOLD = 256 * 1024; // Files bigger than this many bytes are memory-mapped instead of read
+    private static final long MAP_BYTES = 64L * 1024 * 1024; // Bytes of a big file mapped at a time
+    static final int ENCODING_SAMPLE_BYTES = 64 * 1024; // Bytes from the start of a file its encoding is told from, see textEncoding
+    private static final int BINARY_SAMPLE_BYTES = 8 * 1024; // Bytes looked at for a zero byte
+    private static final int WINDOW_CHARS = 256 * 1024; // Chars decoded before the whole lines among them are searched
+    private static final int MAX_WINDOW_CHARS = 32 * 1024 * 1024; // Longer lines, or longer files when matches may span lines, are searched in pieces
+    private static final int MAX_SNIPPET_CHARS = 200; // Longer lines are cut around the match in the results
+
+    // A match, with the line it is on to show in the results
+    public static final class Hit {
+        private final Path path;
+        private final long line; // Counting from 0
+        private final int column; // Chars before the match on its line
+        private final String snippet; // Text of the line around the match
+        private final int snippetStart; // Where the match starts and ends in snippet
+        private final int snippetEnd;
+
+        private Hit(Path path, long line, int column, String snippet, int snippetStart, int snippetEnd) {
+            this.path = path;
+            this.line = line;
+            this.column = column;
+            this.snippet = snippet;
+            this.snippetStart = snippetStart;
+            this.snippetEnd = snippetEnd;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getLine() {
+            return line;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+
+        public String getSnippet() {
+            return snippet;
+        }
+
+        public int getSnippetStart() {
+            return snippetStart;
+        }
+
+        public int getSnippetEnd() {
+            return snippetEnd;
+        }
+    }
+
+    private final Path root;
+    private final ParallelSearch.RangeSearcher searcher;
+    private final boolean lineBounded; // Whether no match can span lines, otherwise a window holds a whole file where it can
+    private final TrigramIndex index; // Narrows the files down when it is built, may be null
+    private final List<String> literals; // Text every match contains, looked up in index
+    private final Consumer<List<Hit>> onHits; // Told about new matches on the EDT
+    private final AtomicInteger filesSearched = new AtomicInteger();
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicLong bytesSearched = new AtomicLong();
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    // Buffers a searcher thread reuses for every file
+    private static final class Buffers {
+        private ByteBuffer bytes = ByteBuffer.allocate((int) MAP_THRESHOLD);
+        private CharBuffer chars = CharBuffer.allocate(WINDOW_CHARS);
+    }
+
+    // searcher is shared by the searcher threads and must not keep state between calls, which holds for LiteralMatcher
+    // and the searchers of ParallelSearch.regex. literals is the text every match contains, see
+    // TrigramIndex.requiredLiterals, and index may be null to search every file
+    public FileSearch(Path root, ParallelSearch.RangeSearcher searcher, boolean lineBounded, TrigramIndex index, List<String> literals, Consumer<List<Hit>> onHits) {
+        this.root = root;
+        this.searcher = searcher;
+        this.lineBounded = lineBounded;
+        this.index = index;
+        this.literals = literals;
+        this.onHits = onHits;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public int getFilesSearched() {
+        return filesSearched.get();
+    }
+
+    public long getBytesSearched() {
+        return bytesSearched.get();
+    }
+
+    public int getHitCount() {
+        return Math.min(hitCount.get(), MAX_HITS);
+    }
+
+    @Override
+    protected Void doInBackground() throws IOException, InterruptedException {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(4 * THREADS), runnable -> {
+            Thread thread = new Thread(runnable, "Find in Files");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy()); // With the queue full the walking thread searches the file itself
+        try {
+            List<Path> candidates = index == null ? null : index.candidates(literals);
+            if (candidates != null) {
+                Set<Path> searched = ConcurrentHashMap.newKeySet(); // A candidate changed since it was indexed is found again by the walk
+                for (Path file : candidates) {
+                    if (isStopped()) {
+                        return null;
+                    }
+                    searched.add(file);
+                    executor.execute(() -> searchQuietly(file));
+                }
+                index.forEachChanged(file -> {
+                    if (searched.add(file)) {
+                        executor.execute(() -> searchQuietly(file));
+                    }
+                }, this::isStopped);
+                return null;
+            }
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    if (isStopped()) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    return isSkipped(dir, root) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (isStopped()) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    if (attributes.isRegularFile() && attributes.size() > 0) {
+                        executor.execute(() -> searchQuietly(file));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exception) { // Unreadable files and directories are left out
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        return null;
+    }
+
+    @Override
+    protected void process(List<Hit> hits) { // Hits published while the EDT was busy arrive together
+        if (!isCancelled()) {
+            onHits.accept(hits);
+        }
+    }
+
+    // Whether the search was cancelled or has found enough
+    private boolean isStopped() {
+        return isCancelled() || hitCount.get() >= MAX_HITS;
+    }
+
+    // Whether a directory is left out of the search, as .git and other hidden ones are
+    static boolean isSkipped(Path dir, Path root) {
+        return !dir.equals(root) && dir.getFileName().toString().startsWith(".");
+    }
+
+    private void searchQuietly(Path file) {
+        if (isStopped()) {
+            return;
+        }
+        try {
+            List<Hit> hits = search(file);
+            filesSearched.incrementAndGet();
+            if (!hits.isEmpty()) {
+                publish(hits.toArray(new Hit[0]));
+            }
+        } catch (IOException | CancellationException skipped) { // Files that vanish or cannot be read are left out
+            // Skipped
+        }
+    }
+
+    // Matches of the searcher in file, or none when it looks binary
+    private List<Hit> search(Path file) throws IOException {
+        Buffers buffers = this.buffers.get();
+        List<Hit> hits = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                return hits;
+            }
+            ByteBuffer bytes = size <= MAP_THRESHOLD ? read(channel, buffers, (int) size) : channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAP_BYTES));
+            TextEncoding encoding = textEncoding(bytes, size);
+            if (encoding == null) {
+                return hits;
+            }
+            bytesSearched.addAndGet(size); // Binary files are skipped, not searched
+            bytes.position(encoding.bomLength());
+            CharsetDecoder decoder = encoding.newDecoder();
+            Window window = new Window(file, buffers, hits);
+            long mappedStart = 0;
+            while (true) {
+                boolean endOfInput = mappedStart + bytes.limit() >= size;
+                while (decoder.decode(bytes, window.chars(), endOfInput).isOverflow()) {
+                    window.searchLines(false);
+                }
+                if (endOfInput) {
+                    while (decoder.flush(window.chars()).isOverflow()) {
+                        window.searchLines(false);
+                    }
+                    window.searchLines(true);
+                    return hits;
+                }
+                mappedStart += bytes.position(); // The next mapping starts with the bytes of a char cut in half by the end of this one
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, mappedStart, Math.min(size - mappedStart, MAP_BYTES));
+            }
+        }
+    }
+
+    // Reads the whole of a small file into the thread's byte buffer
+    private static ByteBuffer read(FileChannel channel, Buffers buffers, int size) throws IOException {
+        ByteBuffer bytes = buffers.bytes;
+        bytes.clear().limit(size);
+        while (bytes.hasRemaining() && channel.read(bytes) != -1) {
+            // Keep reading until the file is in
+        }
+        return bytes.flip();
+    }
+
+    // Encoding of a file of size bytes whose first bytes remain in bytes, or null when it looks binary. Only the first
+    // ENCODING_SAMPLE_BYTES are looked at, however many are at hand, so the index and the search decode a file alike
+    static TextEncoding textEncoding(ByteBuffer bytes, long size) {
+        ByteBuffer sample = bytes.slice();
+        sample.limit(Math.min(sample.limit(), ENCODING_SAMPLE_BYTES));
+        TextEncoding encoding = TextEncoding.detect(sample, sample.limit() == size);
+        return isBinary(sample, encoding) ? null : encoding;
+    }
+
+    // Whether the first bytes hold a zero byte, which text only has in UTF-16
+    private static boolean isBinary(ByteBuffer bytes, TextEncoding encoding) {
+        if (encoding.getCharset().equals(StandardCharsets.UTF_16BE) || encoding.getCharset().equals(StandardCharsets.UTF_16LE)) {
+            return false;
+        }
+        int end = Math.min(bytes.limit(), BINARY_SAMPLE_BYTES);
+        for (int i = 0; i < end; i++) {
+            if (bytes.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Decoded text of one file waiting to be searched. Only whole lines are searched so a match is never cut in half,
+    // the rest stays for the next window. The last char already searched stays at the start of the buffer and the last
+    // char decoded is never searched before the file ends, so a window never looks like the start or the end of the
+    // file: ^, \A, $ and \Z only match where they would in the whole file, and \b and lookbehinds see the char before
+    private final class Window {
+        private final Path file;
+        private final Buffers buffers;
+        private final List<Hit> hits;
+        private long line; // Line of the first char in the buffer not yet searched
+        private int searched; // Chars at the start of the buffer kept from the last window for context, 0 or 1
+
+        private Window(Path file, Buffers buffers, List<Hit> hits) {
+            this.file = file;
+            this.buffers = buffers;
+            this.hits = hits;
+            buffers.chars.clear();
+        }
+
+        private CharBuffer chars() {
+            return buffers.chars;
+        }
+
+        // Searches the whole lines decoded so far, or everything at the end of the file. A full buffer without a line
+        // break, or any buffer when matches may span lines, grows instead, up to MAX_WINDOW_CHARS
+        private void searchLines(boolean endOfInput) {
+            if (isStopped()) {
+                throw new CancellationException();
+            }
+            CharBuffer chars = buffers.chars;
+            int length = chars.position();
+            int end = length;
+            if (!endOfInput) {
+                boolean full = chars.capacity() >= MAX_WINDOW_CHARS;
+                end = lineBounded || full ? lastLineEnd(chars.array(), length - 1) : 0; // The last char waits for what follows it
+                if (end <= searched && full) {
+                    end = length - 1;
+                } else if (end <= searched) {
+                    buffers.chars = CharBuffer.allocate(chars.capacity() * 2).put(chars.flip());
+                    return;
+                }
+            }
+            CharBuffer text = CharBuffer.wrap(chars.array(), 0, length);
+            MatchIndex.Builder matches = new MatchIndex.Builder();
+            searcher.search(text, searched, end, matches);
+            addHits(chars.array(), end, matches.build());
+            for (int i = searched; i < end; i++) {
+                if (chars.array()[i] == '\n') {
+                    line++;
+                }
+            }
+            searched = end > 0 ? 1 : 0;
+            chars.flip().position(end - searched);
+            chars.compact();
+            if (chars.capacity() > WINDOW_CHARS && chars.position() < WINDOW_CHARS) { // A long line or whole-file window is over
+                buffers.chars = CharBuffer.allocate(WINDOW_CHARS).put(chars.flip());
+            }
+        }
+
+        private void addHits(char[] text, int end, MatchIndex matches) {
+            int lineStart = searched;
+            long matchLine = line;
+            int counted = searched; // Chars before this one have been counted for matchLine
+            for (int match = 0; match < matches.size(); match++) {
+                int start = matches.start(match);
+                for (; counted < start; counted++) {
+                    if (text[counted] == '\n') {
+                        matchLine++;
+                        lineStart = counted + 1;
+                    }
+                }
+                int lineEnd = start;
+                while (lineEnd < end && text[lineEnd] != '\n' && text[lineEnd] != '\r') {
+                    lineEnd++;
+                }
+                int from = Math.max(lineStart, start - MAX_SNIPPET_CHARS / 4); // Keeps the match in view on long lines
+                int to = Math.min(lineEnd, from + MAX_SNIPPET_CHARS);
+                int matchEnd = Math.min(matches.end(match), to);
+                hits.add(new Hit(file, matchLine, start - lineStart, new String(text, from, to - from), start - from, matchEnd - from));
+                if (hitCount.incrementAndGet() >= MAX_HITS) {
+                    return;
+                }
+            }
+        }
+
+        // Offset just past the last line break in the first length chars, 0 when there is none
+        private int lastLineEnd(char[] text, int length) {
+            for (int i = length - 1; i >= 0; i--) {
+                if (text[i] == '\n') {
+                    return i + 1;
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * FileSearchResults.java
+ *
+ * Window listing the matches of a Find in Files search as they come in, one row per match with the file, line and the
+ * text around it. Rows are added a batch at a time with a single list event, and every row has the same size so the
+ * list never measures all of them, which keeps it responsive with a hundred thousand matches. Double-clicking a row or
+ * pressing Enter on it opens the file at that line. Closing the window cancels the search.
+ */
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+public class FileSearchResults extends JDialog {
+    private static final int REFRESH_MILLIS = 200; // How often the counts are updated while searching
+
+    private final HitList hits = new HitList();
+    private final JList<FileSearch.Hit> list = new JList<>(hits);
+    private final JLabel summaryLabel = new JLabel(" ");
+    private final JButton cancelButton = new JButton("Cancel");
+    private final Timer refreshTimer = new Timer(REFRESH_MILLIS, e -> showSummary());
+    private FileSearch search; // Search whose matches are listed
+    private long startNanos;
+
+    // Rows of the list, added in batches
+    private static final class HitList extends AbstractListModel<FileSearch.Hit> {
+        private final List<FileSearch.Hit> hits = new ArrayList<>();
+
+        @Override
+        public int getSize() {
+            return hits.size();
+        }
+
+        @Override
+        public FileSearch.Hit getElementAt(int index) {
+            return hits.get(index);
+        }
+
+        private void addAll(List<FileSearch.Hit> batch) {
+            int first = hits.size();
+            hits.addAll(batch);
+            fireIntervalAdded(this, first, hits.size() - 1);
+        }
+
+        private void clear() {
+            int size = hits.size();
+            if (size > 0) {
+                hits.clear();
+                fireIntervalRemoved(this, 0, size - 1);
+            }
+        }
+    }
+
+    // onOpen is told about the match the user picked
+    public FileSearchResults(Frame owner, Consumer<FileSearch.Hit> onOpen) {
+        super(owner, "Find in Files", false);
+        setName("FindInFilesDialog");
+        setSize(900, 500);
+        setLocationRelativeTo(owner);
+        setDefaultCloseOperation(JDialog.HIDE_ON_CLOSE);
+        list.setName("FindInFilesResults");
+        summaryLabel.setName("FindInFilesSummary");
+        cancelButton.setName("FindInFilesCancel");
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        list.setFixedCellHeight(list.getFontMetrics(list.getFont()).getHeight() + 2); // Fixed sizes spare the list from measuring every row
+        list.setFixedCellWidth(1600);
+        list.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+                FileSearch.Hit hit = (FileSearch.Hit) value;
+                String text = relativePath(hit.getPath()) + ":" + (hit.getLine() + 1) + ": " + hit.getSnippet().replace('\t', ' ');
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2 && list.getSelectedValue() != null) {
+                    onOpen.accept(list.getSelectedValue());
+                }
+            }
+        });
+        list.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0), "openHit");
+        list.getActionMap().put("openHit", new AbstractAction() {
+            @Override
+            public void actionPerformed(java.awt.event.ActionEvent e) {
+                if (list.getSelectedValue() != null) {
+                    onOpen.accept(list.getSelectedValue());
+                }
+            }
+        });
+        cancelButton.addActionListener(e -> cancel());
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                cancel();
+            }
+        });
+        JPanel top = new JPanel(new BorderLayout());
+        top.add(summaryLabel, BorderLayout.CENTER);
+        top.add(cancelButton, BorderLayout.EAST);
+        add(top, BorderLayout.NORTH);
+        add(new JScrollPane(list), BorderLayout.CENTER);
+    }
+
+    // Lists the matches of search from now on, replacing the previous search, which is cancelled. Must be called
+    // before search is executed, with a search created to hand its matches to addHits
+    public void show(FileSearch search) {
+        cancel();
+        this.search = search;
+        hits.clear();
+        startNanos = System.nanoTime();
+        search.addPropertyChangeListener(event -> {
+            if (event.getNewValue() == SwingWorker.StateValue.DONE && search == this.search) {
+                refreshTimer.stop();
+                cancelButton.setEnabled(false);
+                showSummary();
+            }
+        });
+        cancelButton.setEnabled(true);
+        refreshTimer.start();
+        showSummary();
+        setVisible(true);
+    }
+
+    // Appends a batch of matches of the search being shown
+    public void addHits(FileSearch search, List<FileSearch.Hit> batch) {
+        if (search == this.search) {
+            hits.addAll(batch);
+        }
+    }
+
+    private void cancel() {
+        if (search != null && !search.isDone()) {
+            search.cancel(true);
+        }
+    }
+
+    private void showSummary() {
+        if (search == null) {
+            return;
+        }
+        String counts = search.getHitCount() + " matches in " + search.getFilesSearched() + " files";
+        if (!search.isDone()) {
+            summaryLabel.setText("Searching " + search.getRoot() + "... " + counts);
+        } else {
+            String seconds = String.format("%.1f", (System.nanoTime() - startNanos) / 1e9);
+            String limited = search.getHitCount() >= FileSearch.MAX_HITS ? ", stopped at the limit" : "";
+            summaryLabel.setText(counts + (search.isCancelled() ? ", cancelled" : limited) + " (" + seconds + " s)");
+        }
+    }
+
+    // Path of a match's file relative to the searched directory
+    private String relativePath(Path path) {
+        return search != null && path.startsWith(search.getRoot()) ? search.getRoot().relativize(path).toString() : path.toString();
+    }
+}
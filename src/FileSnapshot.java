@@ -0,0 +1,325 @@
+/**
+ * FileSnapshot.java
+ *
+ * Fingerprint of a file's text, used to find which parts of it changed on disk. The file is cut into chunks whose
+ * boundaries depend on the bytes around them instead of on their offset, the content-defined chunking rsync and backup
+ * tools use: a chunk ends after a line break where a rolling hash of the bytes before it has its top bits clear. An
+ * insert or remove therefore only changes the chunks it falls in, and the chunks after it keep their hashes even though
+ * they moved. Each chunk records its byte offset, the char offset of its text and a 64-bit hash of its bytes, so
+ * comparing the snapshot of the loaded file with one of the file on disk gives the char ranges of the document to
+ * replace and the byte ranges of the new file to decode for them. A single line longer than MAX_CHUNK_BYTES is one chunk.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+public final class FileSnapshot {
+    private static final int MIN_CHUNK_BYTES = 16 * 1024; // No boundary before this many bytes
+    private static final int MAX_CHUNK_BYTES = 256 * 1024; // Past this many bytes the chunk ends at the next line break
+    private static final long BOUNDARY_MASK = 0xFC00000000000000L; // One line break in 64 ends a chunk once it is long enough
+    private static final int BUFFER_BYTES = 1024 * 1024; // Bytes read from the file at a time
+    private static final long[] GEAR = new long[256]; // Random value per byte value for the rolling hash
+
+    static {
+        Random random = new Random(0x5EED); // Fixed so snapshots taken at different times cut the same text the same way
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    // Part of the document to replace with the text of a byte range of the new file
+    public static final class Change {
+        private final int start; // Char offsets in the document of the old snapshot
+        private final int end;
+        private final long byteStart; // Byte offsets in the file of the new snapshot
+        private final long byteEnd;
+
+        private Change(int start, int end, long byteStart, long byteEnd) {
+            this.start = start;
+            this.end = end;
+            this.byteStart = byteStart;
+            this.byteEnd = byteEnd;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        public long getByteStart() {
+            return byteStart;
+        }
+
+        public long getByteEnd() {
+            return byteEnd;
+        }
+    }
+
+    private final BasicFileAttributes attributes; // Of the file when the snapshot was started
+    private final long[] hashes;
+    private final long[] byteStarts; // Byte offset where each chunk starts, with the file size appended
+    private final int[] charStarts; // Char offset where each chunk's text starts, with the text length appended
+    private final int chunkCount;
+
+    private FileSnapshot(BasicFileAttributes attributes, long[] hashes, long[] byteStarts, int[] charStarts, int chunkCount) {
+        this.attributes = attributes;
+        this.hashes = hashes;
+        this.byteStarts = byteStarts;
+        this.charStarts = charStarts;
+        this.chunkCount = chunkCount;
+    }
+
+    // Reads the whole of path once, without keeping any of its text. progress is told how many bytes have been read and
+    // may throw to abandon the snapshot. Returns null when the file changed while it was being read
+    public static FileSnapshot take(Path path, TextEncoding encoding, LongConsumer progress) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        ByteBuffer encodedNewline = encoding.newEncoder().encode(CharBuffer.wrap("\n"));
+        byte[] newline = new byte[encodedNewline.remaining()];
+        encodedNewline.get(newline);
+        byte lastNewlineByte = newline[newline.length - 1];
+        CharsetDecoder decoder = encoding.newDecoder();
+        CharBuffer scratch = CharBuffer.allocate(BUFFER_BYTES);
+        long[] hashes = new long[1024];
+        long[] byteStarts = new long[1025];
+        int[] charStarts = new int[1025];
+        int chunkCount = 0;
+        CRC32C crc32c = new CRC32C(); // Two checksums together make a 64-bit hash
+        CRC32 crc32 = new CRC32();
+        byte[] buffer = new byte[BUFFER_BYTES];
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long textStart = encoding.bomLength();
+            long bufferStart = textStart; // File offset of buffer[0]
+            long chunkStart = textStart;
+            int chars = 0;
+            long rolling = 0;
+            int filled = 0; // Bytes in buffer
+            int scanned = 0; // Bytes of buffer the rolling hash has seen
+            int hashed = 0; // Bytes of buffer added to the checksums
+            int decoded = 0; // Bytes of buffer decoded and counted
+            channel.position(textStart);
+            while (true) {
+                int read = channel.read(ByteBuffer.wrap(buffer, filled, buffer.length - filled));
+                boolean endOfInput = read == -1;
+                if (!endOfInput) {
+                    filled += read;
+                }
+                for (int i = scanned; i < filled; i++) {
+                    rolling = (rolling << 1) + GEAR[buffer[i] & 0xFF];
+                    long chunkBytes = bufferStart + i + 1 - chunkStart;
+                    if (buffer[i] != lastNewlineByte || chunkBytes < MIN_CHUNK_BYTES || ((rolling & BOUNDARY_MASK) != 0 && chunkBytes < MAX_CHUNK_BYTES)
+                            || !isNewline(buffer, i + 1 - newline.length, bufferStart + i + 1 - newline.length - textStart, newline)) {
+                        continue;
+                    }
+                    crc32c.update(buffer, hashed, i + 1 - hashed);
+                    crc32.update(buffer, hashed, i + 1 - hashed);
+                    hashed = i + 1;
+                    chars += decode(decoder, ByteBuffer.wrap(buffer, decoded, i + 1 - decoded), scratch, false);
+                    decoded = i + 1;
+                    if (chunkCount == hashes.length) {
+                        hashes = Arrays.copyOf(hashes, chunkCount * 2);
+                        byteStarts = Arrays.copyOf(byteStarts, chunkCount * 2 + 1);
+                        charStarts = Arrays.copyOf(charStarts, chunkCount * 2 + 1);
+                    }
+                    hashes[chunkCount] = crc32c.getValue() << 32 | crc32.getValue();
+                    byteStarts[chunkCount + 1] = bufferStart + i + 1; // The first chunk's starts are filled in at the end
+                    charStarts[chunkCount + 1] = chars;
+                    chunkCount++;
+                    crc32c.reset();
+                    crc32.reset();
+                    chunkStart = bufferStart + i + 1;
+                }
+                scanned = filled;
+                crc32c.update(buffer, hashed, filled - hashed);
+                crc32.update(buffer, hashed, filled - hashed);
+                hashed = filled;
+                ByteBuffer rest = ByteBuffer.wrap(buffer, decoded, filled - decoded);
+                chars += decode(decoder, rest, scratch, endOfInput);
+                decoded = rest.position();
+                if (endOfInput) {
+                    break;
+                }
+                // Keep the bytes of a char cut off by the end of the buffer, and enough of a line break to recognise it
+                int keep = Math.min(decoded, filled - (newline.length - 1));
+                System.arraycopy(buffer, keep, buffer, 0, filled - keep);
+                bufferStart += keep;
+                filled -= keep;
+                scanned -= keep;
+                hashed -= keep;
+                decoded -= keep;
+                progress.accept(bufferStart);
+            }
+            if (chunkStart < bufferStart + filled || chunkCount == 0) { // The text after the last boundary, or an empty file
+                if (chunkCount == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, chunkCount + 1);
+                    byteStarts = Arrays.copyOf(byteStarts, chunkCount + 2);
+                    charStarts = Arrays.copyOf(charStarts, chunkCount + 2);
+                }
+                hashes[chunkCount] = crc32c.getValue() << 32 | crc32.getValue();
+                chunkCount++;
+            }
+            byteStarts[0] = textStart;
+            byteStarts[chunkCount] = bufferStart + filled;
+            charStarts[chunkCount] = chars;
+        }
+        BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+        if (after.size() != attributes.size() || !after.lastModifiedTime().equals(attributes.lastModifiedTime())) {
+            return null;
+        }
+        return new FileSnapshot(attributes, hashes, byteStarts, charStarts, chunkCount);
+    }
+
+    public BasicFileAttributes getAttributes() {
+        return attributes;
+    }
+
+    public long getSize() {
+        return attributes.size();
+    }
+
+    // Whether other still describes the file this snapshot was taken of, judging by its size, modification time and identity
+    public boolean matches(BasicFileAttributes other) {
+        return other.size() == attributes.size() && other.lastModifiedTime().equals(attributes.lastModifiedTime())
+                && Objects.equals(other.fileKey(), attributes.fileKey());
+    }
+
+    // Whether newer is a file written over the same one, as opposed to a new file moved into its place
+    public boolean isSameFile(FileSnapshot newer) {
+        return attributes.fileKey() != null && attributes.fileKey().equals(newer.attributes.fileKey());
+    }
+
+    // Whether every byte of this snapshot's file is still where it was in newer's, which only added to its end
+    public boolean isPrefixOf(FileSnapshot newer, Path path) throws IOException {
+        long size = attributes.size();
+        if (newer.getSize() < size) {
+            return false;
+        }
+        int last = chunkCount - 1;
+        for (int i = 0; i < last; i++) {
+            if (i >= newer.chunkCount || hashes[i] != newer.hashes[i] || byteStarts[i + 1] != newer.byteStarts[i + 1]) {
+                return false;
+            }
+        }
+        return hashes[last] == hash(path, byteStarts[last], size); // The last chunk ends where the file used to, newer cuts it elsewhere
+    }
+
+    // Parts of the text of this snapshot that differ in newer. Chunks found in both are kept, the rest are replaced in
+    // order, so the changes are as small as the chunks that really changed even when everything after them moved
+    public List<Change> changesTo(FileSnapshot newer) {
+        int oldStart = 0;
+        int newStart = 0;
+        int oldEnd = chunkCount;
+        int newEnd = newer.chunkCount;
+        while (oldStart < oldEnd && newStart < newEnd && sameChunk(oldStart, newer, newStart)) { // Common start
+            oldStart++;
+            newStart++;
+        }
+        while (oldEnd > oldStart && newEnd > newStart && sameChunk(oldEnd - 1, newer, newEnd - 1)) { // Common end
+            oldEnd--;
+            newEnd--;
+        }
+        Map<Long, Integer> newChunks = new HashMap<>(); // First chunk with each hash in the differing middle of newer
+        for (int i = newEnd - 1; i >= newStart; i--) {
+            newChunks.put(newer.hashes[i], i);
+        }
+        List<Change> changes = new ArrayList<>();
+        int oldChunk = oldStart;
+        int newChunk = newStart;
+        while (oldChunk < oldEnd || newChunk < newEnd) {
+            if (oldChunk < oldEnd && newChunk < newEnd && sameChunk(oldChunk, newer, newChunk)) {
+                oldChunk++;
+                newChunk++;
+                continue;
+            }
+            int oldResume = oldChunk; // Next old chunk that also comes later in newer, where the two line up again
+            int newResume = newEnd;
+            for (; oldResume < oldEnd; oldResume++) {
+                Integer found = newChunks.get(hashes[oldResume]);
+                if (found != null && found >= newChunk && sameChunk(oldResume, newer, found)) {
+                    newResume = found;
+                    break;
+                }
+            }
+            changes.add(new Change(charStarts[oldChunk], charStarts[oldResume], newer.byteStarts[newChunk], newer.byteStarts[newResume]));
+            oldChunk = oldResume;
+            newChunk = newResume;
+        }
+        return changes;
+    }
+
+    private boolean sameChunk(int chunk, FileSnapshot newer, int newChunk) {
+        return hashes[chunk] == newer.hashes[newChunk]
+                && byteStarts[chunk + 1] - byteStarts[chunk] == newer.byteStarts[newChunk + 1] - newer.byteStarts[newChunk];
+    }
+
+    // Hash of the bytes of path in [start, end), the same way chunks are hashed
+    private static long hash(Path path, long start, long end) throws IOException {
+        CRC32C crc32c = new CRC32C();
+        CRC32 crc32 = new CRC32();
+        ByteBuffer bytes = ByteBuffer.allocate((int) Math.min(BUFFER_BYTES, end - start));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (long offset = start; offset < end; ) {
+                bytes.clear().limit((int) Math.min(bytes.capacity(), end - offset));
+                int read = channel.read(bytes, offset);
+                if (read == -1) {
+                    break;
+                }
+                offset += read;
+                bytes.flip();
+                crc32c.update(bytes.duplicate());
+                crc32.update(bytes);
+            }
+        }
+        return crc32c.getValue() << 32 | crc32.getValue();
+    }
+
+    // Whether the bytes of newline are at index of buffer, at a whole number of code units from the start of the text
+    private static boolean isNewline(byte[] buffer, int index, long textOffset, byte[] newline) {
+        if (index < 0 || textOffset % newline.length != 0) {
+            return false;
+        }
+        for (int i = 0; i < newline.length; i++) {
+            if (buffer[index + i] != newline[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Decodes bytes into scratch until they run out and returns how many chars that made
+    private static int decode(CharsetDecoder decoder, ByteBuffer bytes, CharBuffer scratch, boolean endOfInput) {
+        int chars = 0;
+        while (decoder.decode(bytes, scratch, endOfInput).isOverflow()) {
+            chars += scratch.position();
+            scratch.clear();
+        }
+        if (endOfInput) {
+            while (decoder.flush(scratch).isOverflow()) {
+                chars += scratch.position();
+                scratch.clear();
+            }
+        }
+        chars += scratch.position();
+        scratch.clear();
+        return chars;
+    }
+}
@@ -0,0 +1,316 @@
+/**
+ * FileWatcher.java
+ *
+ * Notices when the file open in the editor is changed on disk by another program, and reloads only what changed. A
+ * background thread takes a snapshot of the file as it was loaded, then waits on a WatchService for changes to its
+ * directory, checking the file's size and modification time once a second in case the file system does not report
+ * them. Only when those differ from the snapshot is anything read. Reloading takes a snapshot of the new file and
+ * compares the two chunk by chunk, then decodes just the changed byte ranges and replaces the matching char ranges of
+ * the document, so the caret and everything outside the changes stay put. A file too different from the one loaded,
+ * or a memory-mapped file rewritten in place, has to be opened again instead.
+ */
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class FileWatcher {
+    private static final long POLL_MILLIS = 1000; // Longest wait between two checks of the file's size and modification time
+    private static final long SETTLE_MILLIS = 200; // The file must stay the same this long before it is reported, so a write in progress is not
+    private static final double MAX_CHANGED_FRACTION = 0.5; // Past this much of the file changed, opening it again is cheaper
+
+    private final Path path;
+    private final Document document;
+    private final TextEncoding encoding;
+    private final Runnable onChange;
+    private final Thread thread;
+    private volatile boolean stopped;
+    private volatile FileSnapshot snapshot; // The file the document holds, null until taken or when it could not be
+    private volatile BasicFileAttributes seen; // State of the file last reported or ignored, not reported again
+    private volatile boolean reported; // Whether onChange was run and not answered yet by a reload or ignore
+    private boolean edited; // Whether the document was edited since it last matched the file, touched on the EDT only
+    private boolean reloading; // Set while a reload applies its changes, which are not edits
+    private final DocumentListener editListener = new DocumentListener() {
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            edited |= !reloading;
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            edited |= !reloading;
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+    };
+
+    // Watches path, whose text document holds exactly as it was when its attributes were read. onChange is run on the
+    // EDT when the file is found to be different, and not again until reload or ignore is called
+    public FileWatcher(Path path, Document document, TextEncoding encoding, BasicFileAttributes attributes, Runnable onChange) {
+        this.path = path;
+        this.document = document;
+        this.encoding = encoding;
+        this.onChange = onChange;
+        seen = attributes;
+        document.addDocumentListener(editListener);
+        thread = new Thread(this::watch, "Watch " + path.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public Document getDocument() {
+        return document;
+    }
+
+    // Whether the document has been edited since it last matched the file, so reloading would lose those edits
+    public boolean isEdited() {
+        return edited;
+    }
+
+    // Leaves the document as it is and only reports the file again once it changes some more
+    public void ignore() {
+        seenNow();
+        reported = false;
+    }
+
+    public void stop() {
+        stopped = true;
+        thread.interrupt();
+        document.removeDocumentListener(editListener);
+    }
+
+    // Worker that brings the document up to date with the file. The caller must keep the document from being edited
+    // until it is done, and open the file again when it reports that reloading in place was not possible
+    public Reload reload() {
+        return new Reload();
+    }
+
+    private void watch() {
+        WatchService watcher = null;
+        try {
+            try {
+                watcher = FileSystems.getDefault().newWatchService();
+                path.toAbsolutePath().getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException | UnsupportedOperationException noWatching) { // Polling alone still notices changes, a little later
+                watcher = null;
+            }
+            FileSnapshot loaded = FileSnapshot.take(path, encoding, bytes -> {
+                if (stopped) {
+                    throw new CancellationException();
+                }
+            });
+            if (loaded != null && loaded.matches(seen)) { // Otherwise the file changed after it was loaded and can only be opened again
+                snapshot = loaded;
+            }
+            while (!stopped) {
+                if (!reported && hasChanged()) {
+                    reported = true;
+                    SwingUtilities.invokeLater(() -> {
+                        if (!stopped) {
+                            onChange.run();
+                        }
+                    });
+                }
+                if (watcher == null) {
+                    Thread.sleep(POLL_MILLIS);
+                    continue;
+                }
+                WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException | CancellationException stoppedWhileWaiting) {
+            // Stopped
+        } catch (IOException ioException) {
+            ioException.printStackTrace();
+        } finally {
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException closeException) {
+                    closeException.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Whether the file differs from what was last seen and has stopped changing for SETTLE_MILLIS
+    private boolean hasChanged() throws IOException, InterruptedException {
+        BasicFileAttributes now = attributes();
+        if (now == null || sameState(now, seen)) {
+            return false;
+        }
+        Thread.sleep(SETTLE_MILLIS);
+        BasicFileAttributes settled = attributes();
+        return settled != null && sameState(settled, now);
+    }
+
+    private void seenNow() {
+        try {
+            BasicFileAttributes now = attributes();
+            if (now != null) {
+                seen = now;
+            }
+        } catch (IOException ioException) {
+            ioException.printStackTrace();
+        }
+    }
+
+    // Attributes of the file, null while it does not exist, as between being moved away and replaced
+    private BasicFileAttributes attributes() throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException gone) {
+            return null;
+        }
+    }
+
+    private static boolean sameState(BasicFileAttributes a, BasicFileAttributes b) {
+        return a.size() == b.size() && a.lastModifiedTime().equals(b.lastModifiedTime()) && Objects.equals(a.fileKey(), b.fileKey());
+    }
+
+    // Replaces the changed parts of the document with the new text of the file, or reports that the file has to be
+    // opened again. Progress is reported through the worker's progress property
+    public class Reload extends SwingWorker<List<Reload.Replacement>, Void> {
+        private volatile FileSnapshot newer;
+        private boolean needsOpening; // Set when the file is too different to be patched into the document
+
+        private final class Replacement {
+            private final FileSnapshot.Change change;
+            private final String text;
+
+            private Replacement(FileSnapshot.Change change, String text) {
+                this.change = change;
+                this.text = text;
+            }
+        }
+
+        // Whether the document could not be patched and the file has to be opened again instead
+        public boolean needsOpening() {
+            return needsOpening;
+        }
+
+        @Override
+        protected List<Replacement> doInBackground() throws IOException {
+            FileSnapshot older = snapshot;
+            if (older == null) {
+                return null;
+            }
+            TextEncoding now;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                now = TextEncoding.detect(channel);
+            }
+            if (!now.equals(encoding)) { // Read differently now, every char may have changed
+                return null;
+            }
+            newer = FileSnapshot.take(path, encoding, bytes -> {
+                if (isCancelled()) {
+                    throw new CancellationException();
+                }
+                setProgress((int) (90 * Math.min(bytes, older.getSize()) / Math.max(1, older.getSize())));
+            });
+            if (newer == null) { // Still being written
+                return null;
+            }
+            if (older.isSameFile(newer) && isMapped() && !older.isPrefixOf(newer, path)) { // The mapped text changed under the document
+                return null;
+            }
+            List<FileSnapshot.Change> changes = older.changesTo(newer);
+            long changedBytes = 0;
+            for (FileSnapshot.Change change : changes) {
+                changedBytes += change.getByteEnd() - change.getByteStart();
+            }
+            if (changedBytes > MAX_CHANGED_FRACTION * Math.max(newer.getSize(), FileLoader.LARGE_FILE_THRESHOLD)) { // Small files are always patched, they are quick either way
+                return null;
+            }
+            List<Replacement> replacements = new ArrayList<>();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                for (FileSnapshot.Change change : changes) {
+                    replacements.add(new Replacement(change, read(channel, change.getByteStart(), change.getByteEnd())));
+                }
+            }
+            setProgress(100);
+            return replacements;
+        }
+
+        @Override
+        protected void done() {
+            List<Replacement> replacements;
+            try {
+                replacements = get();
+            } catch (CancellationException cancelled) {
+                ignore(); // Reported again once the file changes some more
+                return;
+            } catch (InterruptedException | ExecutionException reloadException) {
+                reloadException.printStackTrace();
+                ignore();
+                return;
+            }
+            reported = false;
+            if (replacements == null) {
+                needsOpening = true;
+                return;
+            }
+            reloading = true;
+            try {
+                for (int i = replacements.size() - 1; i >= 0; i--) { // From the end, so the offsets of the earlier ones stay valid
+                    Replacement replacement = replacements.get(i);
+                    FileSnapshot.Change change = replacement.change;
+                    ((AbstractDocument) document).replace(change.getStart(), change.getEnd() - change.getStart(), replacement.text, null);
+                }
+                snapshot = newer;
+                seen = newer.getAttributes(); // A change made since the snapshot is still reported
+            } catch (BadLocationException badLocation) {
+                badLocation.printStackTrace();
+            } finally {
+                reloading = false;
+            }
+        }
+
+        private boolean isMapped() {
+            return document instanceof PieceTableDocument && ((PieceTableDocument) document).getPieceTable().getOriginal() instanceof MappedText;
+        }
+
+        // Decodes the bytes of the file in [start, end), which begin and end at line breaks
+        private String read(FileChannel channel, long start, long end) throws IOException {
+            ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+            while (bytes.hasRemaining() && channel.read(bytes, start + bytes.position()) != -1) {
+                // Keep reading until the range is complete
+            }
+            bytes.flip();
+            CharBuffer chars = encoding.newDecoder().decode(bytes);
+            return chars.toString();
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/**
+ * IncrementalSave.java
+ *
+ * Saves a memory-mapped document by patching the file it was opened from instead of rewriting it. This works when every
+ * piece of the original text is still at its original offset: the text typed between them then replaces exactly as many
+ * characters as it covers, and anything after the last original piece is a new tail. Each replacement must encode to
+ * as many bytes as the text it replaces and keep the mapped pages intact; the tail may have any length. The patches are
+ * written to a redo journal next to the file before the file is touched, so a crash part way leaves either the old file
+ * or a journal that finishes the save the next time the file is opened. Anything else falls back to a full rewrite.
+ *
+ * Only a file that opens as a document can be patched, that is one of at most Pager.PAGER_THRESHOLD bytes: by default
+ * an eighth of the maximum heap and never more than 2 GB, since a document counts its chars in an int. A bigger file
+ * opens read-only in the pager and cannot be edited or saved at all.
+ */
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+public final class IncrementalSave {
+    private static final String DISK_STATE = "IncrementalSave.diskState"; // Document property holding the file's attributes after the last patch
+    private static final int JOURNAL_MAGIC = 0x54455031; // "TEP1"
+    private static final int MAX_PATCH_BYTES = 64 * 1024 * 1024; // Bigger edits are left to a full rewrite, they are no quicker patched
+
+    private final Document document;
+    private final MappedText original;
+    private final Path path;
+    private final List<Patch> patches;
+    private final long newSize; // Size of the file once patched
+
+    private IncrementalSave(Document document, MappedText original, Path path, List<Patch> patches, long newSize) {
+        this.document = document;
+        this.original = original;
+        this.path = path;
+        this.patches = patches;
+        this.newSize = newSize;
+    }
+
+    // Works out the patches that turn path into the text of document, or returns null when the file has to be rewritten.
+    // Must be called with the document kept from changing until apply returns
+    public static IncrementalSave plan(Document document, Path path, Charset charset) throws IOException {
+        if (!(document instanceof PieceTableDocument)) {
+            return null;
+        }
+        PieceTableContent content = ((PieceTableDocument) document).getPieceTable();
+        if (!(content.getOriginal() instanceof MappedText)) { // Only mapped files are big enough to be worth it
+            return null;
+        }
+        MappedText original = (MappedText) content.getOriginal();
+        if (!original.getCharset().equals(charset) || !Files.exists(path) || !Files.isSameFile(path, original.getPath())
+                || !isUnchanged(document, path, original)) {
+            return null;
+        }
+        int originalLength = original.length();
+        if (document.getLength() < originalLength) { // The end of the original text was removed, the file would have to shrink into the mapped region
+            return null;
+        }
+        // Collect the runs of added text between original pieces, splitting off the part past the original text as the tail
+        List<int[]> ranges = new ArrayList<>(); // {start, end} document offsets of each run of added text
+        boolean[] aligned = {true};
+        int[] offset = {0};
+        content.visitPieces((isOriginal, start, length) -> {
+            int end = offset[0] + length;
+            if (isOriginal) {
+                aligned[0] &= start == offset[0];
+            } else if (!ranges.isEmpty() && ranges.get(ranges.size() - 1)[1] == offset[0] && offset[0] != originalLength) {
+                ranges.get(ranges.size() - 1)[1] = end; // Adjacent added pieces form one run
+            } else {
+                ranges.add(new int[]{offset[0], end});
+            }
+            int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last[0] < originalLength && last[1] > originalLength) {
+                last[1] = originalLength;
+                ranges.add(new int[]{originalLength, end});
+            }
+            offset[0] = end;
+        });
+        if (!aligned[0]) { // Something was inserted or removed in the middle, every byte after it moves
+            return null;
+        }
+        CharsetEncoder encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        List<Patch> patches = new ArrayList<>();
+        long newSize = original.getSize();
+        long patchBytes = 0;
+        try {
+            for (int[] range : ranges) {
+                int start = range[0];
+                int end = range[1];
+                String text = document.getText(start, end - start);
+                long byteStart = original.byteOffset(start);
+                if (byteStart < 0) {
+                    return null;
+                }
+                byte[] bytes = encode(encoder, text);
+                patchBytes += bytes.length;
+                if (patchBytes > MAX_PATCH_BYTES) {
+                    return null;
+                }
+                if (start == originalLength) { // New tail. The file is extended to fit it, or cut back when an earlier patch save left a longer tail
+                    newSize = byteStart + bytes.length;
+                } else {
+                    long byteEnd = original.byteOffset(end);
+                    if (byteEnd < 0 || byteEnd - byteStart != bytes.length || !keepsPages(original, encoder, text, start, end, byteStart)) {
+                        return null;
+                    }
+                }
+                patches.add(new Patch(byteStart, bytes, start, end));
+            }
+        } catch (BadLocationException badLocation) {
+            throw new IOException("Document changed while saving", badLocation);
+        }
+        return new IncrementalSave(document, original, path, patches, newSize);
+    }
+
+    // Journals the patches, writes them into the file and forces it to disk
+    public void apply() throws IOException {
+        PieceTableContent content = ((PieceTableDocument) document).getPieceTable();
+        for (Patch patch : patches) { // Undo may still want the text about to be overwritten
+            if (patch.charStart < original.length()) {
+                content.detachOriginal(patch.charStart, patch.charEnd);
+            }
+        }
+        Path journal = journalFor(path);
+        writeJournal(journal, patches, newSize);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            write(channel, patches, newSize);
+        }
+        Files.delete(journal); // The file holds the whole save now, the journal has nothing left to redo
+        for (Patch patch : patches) {
+            if (patch.charStart < original.length()) { // Pages holding the old text are decoded again, the tail lies past the mapping
+                original.invalidate(patch.charStart, patch.charEnd);
+            }
+        }
+        document.putProperty(DISK_STATE, Files.readAttributes(path, BasicFileAttributes.class));
+    }
+
+    // Finishes a patch save interrupted by a crash, or drops the journal of one that never got to touch path. Called
+    // before path is opened
+    public static void recover(Path path) throws IOException {
+        Path journal = journalFor(path);
+        List<Patch> patches = new ArrayList<>();
+        long newSize = -1;
+        boolean committed;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(Files.newInputStream(journal), crc))) {
+            committed = in.readInt() == JOURNAL_MAGIC;
+            long offset;
+            while (committed && (offset = in.readLong()) >= 0) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                patches.add(new Patch(offset, bytes, 0, 0));
+            }
+            if (committed) {
+                newSize = in.readLong();
+                long expected = crc.getValue();
+                committed = in.readLong() == expected;
+            }
+        } catch (NoSuchFileException noJournal) {
+            return;
+        } catch (EOFException torn) {
+            committed = false;
+        }
+        if (!committed) { // Torn or foreign journal, the file was never touched. Deleted once the stream is closed
+            Files.delete(journal);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) { // Writing the same bytes twice is harmless
+            write(channel, patches, newSize);
+        }
+        Files.delete(journal);
+    }
+
+    private static void writeJournal(Path journal, List<Patch> patches, long newSize) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(Channels.newOutputStream(channel), crc));
+            out.writeInt(JOURNAL_MAGIC);
+            for (Patch patch : patches) {
+                out.writeLong(patch.offset);
+                out.writeInt(patch.bytes.length);
+                out.write(patch.bytes);
+            }
+            out.writeLong(-1);
+            out.writeLong(newSize);
+            out.writeLong(crc.getValue()); // Commit marker, a journal without a matching checksum is ignored
+            out.flush();
+            channel.force(true);
+        }
+    }
+
+    private static void write(FileChannel channel, List<Patch> patches, long newSize) throws IOException {
+        for (Patch patch : patches) {
+            ByteBuffer bytes = ByteBuffer.wrap(patch.bytes);
+            long position = patch.offset;
+            while (bytes.hasRemaining()) {
+                position += channel.write(bytes, position);
+            }
+        }
+        if (channel.size() > newSize) { // A shorter tail than the one an earlier patch save wrote
+            channel.truncate(newSize);
+        }
+        channel.force(true);
+    }
+
+    private static Path journalFor(Path path) {
+        return path.resolveSibling("." + path.getFileName() + ".patch");
+    }
+
+    // Whether the file still looks the way it did after it was opened or last patched
+    private static boolean isUnchanged(Document document, Path path, MappedText original) throws IOException {
+        BasicFileAttributes expected = (BasicFileAttributes) document.getProperty(DISK_STATE);
+        if (expected == null) {
+            expected = original.getAttributes();
+        }
+        BasicFileAttributes actual = Files.readAttributes(path, BasicFileAttributes.class);
+        return actual.size() == expected.size() && actual.lastModifiedTime().equals(expected.lastModifiedTime())
+                && Objects.equals(actual.fileKey(), expected.fileKey());
+    }
+
+    // Whether the pages of original overlapping [start, end) still hold the same number of chars once text is written
+    // over their bytes, which is what lets the mapped text keep reading the file after it is patched
+    private static boolean keepsPages(MappedText original, CharsetEncoder encoder, String text, int start, int end, long byteStart) throws IOException {
+        for (int pageStart : original.pageStartsBetween(start, end)) {
+            if (byteStart + encode(encoder, text.substring(0, pageStart - start)).length != original.byteOffset(pageStart)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] encode(CharsetEncoder encoder, String text) throws CharacterCodingException {
+        ByteBuffer buffer = encoder.reset().encode(CharBuffer.wrap(text));
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static final class Patch {
+        final long offset; // Byte offset in the file
+        final byte[] bytes;
+        final int charStart; // Range of the original text the bytes replace, not journaled
+        final int charEnd;
+
+        Patch(long offset, byte[] bytes, int charStart, int charEnd) {
+            this.offset = offset;
+            this.bytes = bytes;
+            this.charStart = charStart;
+            this.charEnd = charEnd;
+        }
+    }
+}
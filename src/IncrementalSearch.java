@@ -0,0 +1,206 @@
+/**
+ * IncrementalSearch.java
+ *
+ * Runs the search while the query is being typed. Keystrokes restart a short debounce timer, searches run one at a
+ * time on a background thread, and starting a new search cancels the one in flight and discards whatever it would have
+ * reported. When a plain-text query only grows at the end, the matches of the previous query are filtered instead of
+ * searching the whole text again. Edits to the searched text refresh the matches the same way once typing pauses.
+ */
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+public class IncrementalSearch {
+    private static final int DEBOUNCE_MILLIS = 150;
+    private static final long REGEX_TIMEOUT_MILLIS = Long.getLong("texteditor.regexTimeoutMillis", 5000); // Time a regex search may take before it is abandoned
+
+    // Why a search ran, in increasing order of priority when several are pending at once
+    public enum Reason {
+        TEXT_EDITED, // The searched text changed, the matches only need refreshing
+        TYPED, // The query or its options changed
+        REQUESTED // The search button or menu item was used
+    }
+
+    // Told about search outcomes on the EDT
+    public interface Listener {
+        void searchFinished(MatchIndex matches, Reason reason);
+
+        void searchFailed(String message, Reason reason);
+    }
+
+    private final JTextArea textArea;
+    private final JTextField searchField;
+    private final BooleanSupplier regexSelected;
+    private final BooleanSupplier ignoreCaseSelected;
+    private final Listener listener;
+    private final Timer debounceTimer;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Search");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final DocumentListener textListener = new DocumentListener() { // Any edit invalidates the matches kept for reuse
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            textVersion++;
+            schedule(Reason.TEXT_EDITED);
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            textVersion++;
+            schedule(Reason.TEXT_EDITED);
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+    };
+    private Reason pendingReason = Reason.TEXT_EDITED; // Reason of the search waiting on the debounce timer
+    private Future<?> running;
+    private AtomicBoolean runningCancelled = new AtomicBoolean(); // Set for the search in flight when a newer one starts
+    private int generation; // Incremented for every search, results of older generations are dropped
+    private int textVersion;
+    private Document textDocument;
+    // Last completed plain-text search, reused when the next query extends it
+    private String lastQuery;
+    private boolean lastIgnoreCase;
+    private int lastTextVersion = -1;
+    private MatchIndex lastMatches;
+
+    public IncrementalSearch(JTextArea textArea, JTextField searchField, BooleanSupplier regexSelected, BooleanSupplier ignoreCaseSelected, Listener listener) {
+        this.textArea = textArea;
+        this.searchField = searchField;
+        this.regexSelected = regexSelected;
+        this.ignoreCaseSelected = ignoreCaseSelected;
+        this.listener = listener;
+        debounceTimer = new Timer(DEBOUNCE_MILLIS, e -> start(pendingReason));
+        debounceTimer.setRepeats(false);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                schedule(Reason.TYPED);
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                schedule(Reason.TYPED);
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+        watch(textArea.getDocument());
+        textArea.addPropertyChangeListener("document", e -> {
+            watch(textArea.getDocument());
+            schedule(Reason.TEXT_EDITED);
+        });
+    }
+
+    // Searches once typing has paused for the debounce delay
+    public void schedule(Reason reason) {
+        if (!debounceTimer.isRunning() || reason.compareTo(pendingReason) > 0) {
+            pendingReason = reason;
+        }
+        debounceTimer.restart();
+    }
+
+    // Searches right away, for the search button and menu item
+    public void searchNow() {
+        debounceTimer.stop();
+        start(Reason.REQUESTED);
+    }
+
+    private void start(Reason reason) {
+        runningCancelled.set(true); // Stop the search in flight, it checks the flag between chunks
+        if (running != null) {
+            running.cancel(true);
+        }
+        int searchGeneration = ++generation;
+        String query = searchField.getText();
+        boolean regex = regexSelected.getAsBoolean();
+        boolean ignoreCase = ignoreCaseSelected.getAsBoolean();
+        if (query.isEmpty()) {
+            if (reason != Reason.TEXT_EDITED) {
+                listener.searchFinished(MatchIndex.EMPTY, reason);
+            }
+            return;
+        }
+        MatchIndex reusable = !regex && lastQuery != null && lastTextVersion == textVersion && lastIgnoreCase == ignoreCase
+                && query.startsWith(lastQuery) ? lastMatches : null;
+        String previousQuery = lastQuery;
+        int searchTextVersion = textVersion;
+        Document document = textArea.getDocument();
+        int length = document.getLength();
+        Supplier<CharSequence> texts = () -> new DocumentText(document, 0, length); // Searches read the document in place instead of copying it with getText
+        AtomicBoolean cancelled = new AtomicBoolean();
+        runningCancelled = cancelled;
+        BooleanSupplier isCancelled = cancelled::get;
+        running = executor.submit(() -> {
+            try {
+                MatchIndex matches;
+                if (regex) {
+                    Pattern pattern = PatternCache.get(query, true, ignoreCase, false); // Repeated queries skip compilation
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REGEX_TIMEOUT_MILLIS);
+                    matches = ParallelSearch.search(texts, ParallelSearch.regex(pattern, deadline, isCancelled), ParallelSearch.isLineBounded(pattern), isCancelled);
+                } else {
+                    LiteralMatcher literalMatcher = new LiteralMatcher(query, ignoreCase);
+                    if (reusable != null && query.equals(previousQuery)) { // Nothing changed since the last search
+                        matches = reusable;
+                    } else if (reusable != null && !new LiteralMatcher(previousQuery, ignoreCase).canOverlap()) {
+                        matches = literalMatcher.filter(texts.get(), reusable); // Every new match starts where the shorter query matched
+                    } else {
+                        matches = ParallelSearch.search(texts, literalMatcher, literalMatcher.isLineBounded(), isCancelled);
+                    }
+                }
+                SwingUtilities.invokeLater(() -> {
+                    if (searchGeneration == generation) { // A newer search has started since, this result is stale
+                        if (!regex) {
+                            lastQuery = query;
+                            lastIgnoreCase = ignoreCase;
+                            lastTextVersion = searchTextVersion;
+                            lastMatches = matches;
+                        }
+                        listener.searchFinished(matches, reason);
+                    }
+                });
+            } catch (PatternSyntaxException syntaxException) {
+                SwingUtilities.invokeLater(() -> {
+                    if (searchGeneration == generation) {
+                        listener.searchFailed("Invalid regex: " + syntaxException.getDescription(), reason);
+                    }
+                });
+            } catch (WatchdogCharSequence.SearchTimeoutException timeout) {
+                SwingUtilities.invokeLater(() -> {
+                    if (searchGeneration == generation) {
+                        listener.searchFailed("Regex search stopped after " + REGEX_TIMEOUT_MILLIS + " ms", reason);
+                    }
+                });
+            } catch (CancellationException cancellation) {
+                // Superseded by a newer search
+            }
+        });
+    }
+
+    private void watch(Document document) {
+        if (textDocument != null) {
+            textDocument.removeDocumentListener(textListener);
+        }
+        textDocument = document;
+        textDocument.addDocumentListener(textListener);
+        textVersion++;
+    }
+}
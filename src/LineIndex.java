@@ -0,0 +1,144 @@
+/**
+ * LineIndex.java
+ *
+ * Start offset of every line of a document in one primitive array, kept up to date as the document is edited. The
+ * array has a gap at the line last edited, like the gap buffer of GapContent: starts before the gap are stored as
+ * offsets from the beginning of the document and starts after it as offsets from its end, so an edit only touches the
+ * starts between the previous edit and this one. Looking up a line's start is O(1) and finding the line of an offset
+ * is a binary search, whatever the size of the document.
+ */
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Segment;
+import java.util.Arrays;
+
+public final class LineIndex implements DocumentListener {
+    private final Document document;
+    private int[] starts; // Line starts with a gap in [gapStart, gapEnd)
+    private int gapStart;
+    private int gapEnd;
+    private int length; // Document length the starts after the gap are relative to
+
+    private LineIndex(Document document) {
+        this.document = document;
+        Element root = document.getDefaultRootElement(); // The document has already split its text into lines
+        int lines = root.getElementCount();
+        starts = new int[lines + 16];
+        for (int line = 0; line < lines; line++) {
+            starts[line] = root.getElement(line).getStartOffset();
+        }
+        gapStart = lines;
+        gapEnd = starts.length;
+        length = document.getLength();
+        document.addDocumentListener(this);
+    }
+
+    // The index of document, created and attached to it the first time it is asked for. Must be called on the EDT
+    public static LineIndex of(Document document) {
+        LineIndex index = (LineIndex) document.getProperty(LineIndex.class);
+        if (index == null) {
+            index = new LineIndex(document);
+            document.putProperty(LineIndex.class, index);
+        }
+        return index;
+    }
+
+    public int lineCount() {
+        return starts.length - (gapEnd - gapStart);
+    }
+
+    // Start offset of line, counting from 0
+    public int lineStart(int line) {
+        if (line < 0 || line >= lineCount()) {
+            throw new IndexOutOfBoundsException("line " + line + ", lines " + lineCount());
+        }
+        return line < gapStart ? starts[line] : starts[line + gapEnd - gapStart] + length;
+    }
+
+    // Offset just past the end of line, including its newline
+    public int lineEnd(int line) {
+        return line + 1 < lineCount() ? lineStart(line + 1) : length + 1; // The last line ends after the implied newline
+    }
+
+    // Line containing offset, counting from 0
+    public int lineOf(int offset) {
+        int low = 0; // Binary search for the last line starting at or before offset
+        int high = lineCount() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (lineStart(mid) <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        int offset = e.getOffset();
+        int line = lineOf(offset);
+        moveGap(line + 1); // Starts up to line stay put, the ones after it keep their distance from the end
+        length += e.getLength();
+        Segment segment = new Segment();
+        segment.setPartialReturn(true);
+        try {
+            int position = offset;
+            int end = offset + e.getLength();
+            while (position < end) {
+                document.getText(position, end - position, segment);
+                for (int i = 0; i < segment.count; i++) {
+                    if (segment.array[segment.offset + i] == '\n') {
+                        insertStart(position + i + 1);
+                    }
+                }
+                position += segment.count;
+            }
+        } catch (BadLocationException badLocation) {
+            throw new IllegalStateException(badLocation);
+        }
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        int offset = e.getOffset();
+        int end = offset + e.getLength();
+        int first = lineOf(offset) + 1; // Lines starting inside the removed range disappear
+        moveGap(first);
+        while (gapEnd < starts.length && starts[gapEnd] + length <= end) {
+            gapEnd++;
+        }
+        length -= e.getLength();
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+    }
+
+    // Moves the gap so that it starts before line, converting the starts it passes between the two ways of storing them
+    private void moveGap(int line) {
+        while (gapStart > line) {
+            starts[--gapEnd] = starts[--gapStart] - length;
+        }
+        while (gapStart < line) {
+            starts[gapStart++] = starts[gapEnd++] + length;
+        }
+    }
+
+    // Adds a line start at the gap, after every start before it
+    private void insertStart(int start) {
+        if (gapStart == gapEnd) {
+            int grown = Math.max(16, starts.length / 2); // Room for more lines, after which every start still moves at most once
+            int[] array = Arrays.copyOf(starts, starts.length + grown);
+            System.arraycopy(starts, gapEnd, array, gapEnd + grown, starts.length - gapEnd);
+            starts = array;
+            gapEnd += grown;
+        }
+        starts[gapStart++] = start;
+    }
+}
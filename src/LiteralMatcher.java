@@ -0,0 +1,103 @@
+/**
+ * LiteralMatcher.java
+ *
+ * Finds a plain string without going through the regex engine, using Boyer-Moore-Horspool: the character under the
+ * end of the needle decides how far the needle can jump, so most of the text is never compared at all. Matches are
+ * reported without overlapping, the same way Matcher.find walks through a text. Case-insensitive matching folds both
+ * sides character by character like Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE does.
+ */
+
+import java.util.Arrays;
+
+public final class LiteralMatcher implements ParallelSearch.RangeSearcher {
+    private final char[] needle; // Already folded when ignoring case
+    private final boolean ignoreCase;
+    private final int[] shifts = new int[256]; // Horspool shift for each low byte of a character, shared by characters with equal low bytes
+
+    public LiteralMatcher(String needle, boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        this.needle = new char[needle.length()];
+        for (int i = 0; i < needle.length(); i++) {
+            this.needle[i] = ignoreCase ? fold(needle.charAt(i)) : needle.charAt(i);
+        }
+        int last = this.needle.length - 1;
+        Arrays.fill(shifts, Math.max(this.needle.length, 1));
+        for (int i = 0; i < last; i++) { // Keeping the smallest shift of the characters sharing a slot keeps every jump safe
+            shifts[this.needle[i] & 0xFF] = last - i;
+        }
+    }
+
+    // Whether no match can contain a line break, which lets ParallelSearch split the text on lines
+    public boolean isLineBounded() {
+        for (char c : needle) {
+            if (c == '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether two occurrences of the needle can overlap, which happens when a proper prefix of it is also a suffix
+    public boolean canOverlap() {
+        for (int shift = 1; shift < needle.length; shift++) {
+            if (Arrays.equals(needle, 0, needle.length - shift, needle, shift, needle.length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Finds the matches of this needle given the matches of one of its prefixes over the same text. The prefix must not
+    // be able to overlap itself so that its matches are all of its occurrences
+    public MatchIndex filter(CharSequence text, MatchIndex prefixMatches) {
+        MatchIndex.Builder matches = new MatchIndex.Builder();
+        int lastEnd = 0;
+        for (int match = 0; match < prefixMatches.size(); match++) {
+            int start = prefixMatches.start(match);
+            if (start >= lastEnd && start + needle.length <= text.length() && matchesAt(text, start, needle.length)) { // Keep matches from overlapping, as find would
+                matches.add(start, start + needle.length);
+                lastEnd = start + needle.length;
+            }
+        }
+        return matches.build();
+    }
+
+    @Override
+    public void search(CharSequence text, int from, int to, MatchIndex.Builder matches) {
+        int length = needle.length;
+        if (length == 0) {
+            return;
+        }
+        int last = length - 1;
+        char lastChar = needle[last];
+        int limit = Math.min(to, text.length() - last); // Matches may start anywhere in [from, to) and may run past to
+        int i = from;
+        while (i < limit) {
+            char c = text.charAt(i + last);
+            if (ignoreCase) {
+                c = fold(c);
+            }
+            if (c == lastChar && matchesAt(text, i, last)) { // The last character is already known to match
+                matches.add(i, i + length);
+                i += length;
+            } else {
+                i += shifts[c & 0xFF];
+            }
+        }
+    }
+
+    // Compares the first count characters of the needle against text starting at start
+    private boolean matchesAt(CharSequence text, int start, int count) {
+        for (int j = 0; j < count; j++) {
+            char c = text.charAt(start + j);
+            if ((ignoreCase ? fold(c) : c) != needle[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}
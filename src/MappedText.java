@@ -0,0 +1,287 @@
+/**
+ * MappedText.java
+ *
+ * Read-only character sequence over a memory-mapped file. The file is split into pages that start on character
+ * boundaries; opening only records where each page starts, and a page is decoded the first time one of its characters
+ * is read. A small LRU cache keeps recently used pages, so only the regions being shown or searched are held on the heap.
+ */
+
+import javax.swing.text.Segment;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+public class MappedText implements CharSequence {
+    private static final int PAGE_BYTES = 64 * 1024; // Bytes decoded at a time
+    private static final long SEGMENT_BYTES = 1L << 30; // A single mapping is limited to 2 GB, so the file is mapped in 1 GB segments
+    private static final int SEGMENT_OVERLAP = PAGE_BYTES + 16; // Segments overlap so that any page lies entirely inside one of them
+    private static final int CACHED_PAGES = 64;
+
+    private final Path path;
+    private final Charset charset;
+    private final long size;
+    private final BasicFileAttributes attributes; // Read when the file was mapped, tells whether it has changed since
+    private final MappedByteBuffer[] segments;
+    private final long[] pageByteStarts; // Byte offset in the file where each page starts
+    private final int[] pageCharStarts; // Char offset in the text where each page starts, with the total length appended
+    private final int pageCount;
+    private final int length;
+    private final Map<Integer, char[]> cache = new LinkedHashMap<>(CACHED_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, char[]> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+    private volatile Page lastPage; // Most recently read page, checked before touching the cache
+    private final CharsetDecoder pageDecoder; // Reused for every page, guarded by the cache lock
+
+    public MappedText(Path path, Charset charset) throws IOException {
+        this(path, charset, 0, bytes -> { });
+    }
+
+    // The text starts textStart bytes into the file, after its byte order mark. progress is told how many bytes have been
+    // indexed after every page and may throw to abandon opening the file
+    public MappedText(Path path, Charset charset, int textStart, LongConsumer progress) throws IOException {
+        this.path = path;
+        this.charset = charset;
+        pageDecoder = newDecoder();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) { // Mappings stay valid after the channel is closed
+            size = channel.size();
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = i * SEGMENT_BYTES;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, SEGMENT_BYTES + SEGMENT_OVERLAP));
+            }
+        }
+        int maxPages = (int) (size / (PAGE_BYTES - 16)) + 2; // A page leaves at most a partial character of its bytes to the next one
+        pageByteStarts = new long[maxPages];
+        pageCharStarts = new int[maxPages + 1];
+        // Record where every page starts. Single-byte charsets map each byte to one char, anything else has to be decoded to be counted
+        boolean singleByte = charset.newEncoder().maxBytesPerChar() == 1;
+        CharsetDecoder decoder = newDecoder();
+        CharBuffer scratch = CharBuffer.allocate((int) (PAGE_BYTES * decoder.maxCharsPerByte()) + 2);
+        long byteOffset = textStart;
+        long charOffset = 0;
+        int pages = 0;
+        while (byteOffset < size) {
+            pageByteStarts[pages] = byteOffset;
+            pageCharStarts[pages] = (int) charOffset;
+            pages++;
+            if (singleByte) {
+                int bytes = (int) Math.min(PAGE_BYTES, size - byteOffset);
+                byteOffset += bytes;
+                charOffset += bytes;
+            } else {
+                ByteBuffer input = slice(byteOffset);
+                int start = input.position();
+                scratch.clear();
+                decoder.reset();
+                decoder.decode(input, scratch, byteOffset + PAGE_BYTES >= size);
+                if (input.position() == start) { // Nothing decodable left, which only happens on a truncated final character
+                    decoder.decode(input, scratch, true);
+                    decoder.flush(scratch);
+                }
+                byteOffset += input.position() - start;
+                charOffset += scratch.position();
+            }
+            if (charOffset >= Integer.MAX_VALUE) {
+                throw new IOException("File is too large to be opened as a document: " + path);
+            }
+            progress.accept(byteOffset);
+        }
+        pageCount = pages;
+        pageCharStarts[pages] = (int) charOffset;
+        length = (int) charOffset;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public BasicFileAttributes getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        Page page = pageFor(index);
+        return page.chars[index - page.charStart];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length).toString();
+    }
+
+    // Copies the characters in [start, end) into dst starting at dstBegin
+    public void getChars(int start, int end, char[] dst, int dstBegin) {
+        while (start < end) {
+            Page page = pageFor(start);
+            int count = Math.min(end - start, page.charStart + page.chars.length - start);
+            System.arraycopy(page.chars, start - page.charStart, dst, dstBegin, count);
+            start += count;
+            dstBegin += count;
+        }
+    }
+
+    // Points txt at the decoded page containing index without copying, returning at most len chars up to the end of that page
+    public void getSegment(int index, int len, Segment txt) {
+        Page page = pageFor(index);
+        txt.array = page.chars;
+        txt.offset = index - page.charStart;
+        txt.count = Math.min(len, page.chars.length - txt.offset);
+    }
+
+    // Byte offset in the file where the char at index starts, index may be the length of the text. Returns -1 when the
+    // bytes before index on its page do not survive decoding and re-encoding, in which case the offset is unknown
+    public long byteOffset(int index) {
+        if (index == length) {
+            return size;
+        }
+        Page page = pageFor(index);
+        int pageIndex = pageIndexFor(index);
+        long pageByteStart = pageByteStarts[pageIndex];
+        if (charset.newEncoder().maxBytesPerChar() == 1) { // Every char is one byte
+            return pageByteStart + index - page.charStart;
+        }
+        CharsetEncoder encoder = charset.newEncoder();
+        ByteBuffer encoded;
+        try {
+            encoded = encoder.encode(CharBuffer.wrap(page.chars, 0, index - page.charStart));
+        } catch (CharacterCodingException unmappable) { // Replacement characters from malformed input
+            return -1;
+        }
+        ByteBuffer original = slice(pageByteStart);
+        original.limit(original.position() + encoded.remaining());
+        return original.remaining() == encoded.remaining() && original.equals(encoded) ? pageByteStart + encoded.remaining() : -1;
+    }
+
+    // Char offsets in (start, end) where a page starts. Rewriting a range in place keeps the pages intact only if each
+    // of these still falls between the same two characters
+    public int[] pageStartsBetween(int start, int end) {
+        int first = pageIndexFor(start) + 1;
+        int last = first;
+        while (last < pageCount && pageCharStarts[last] < end) {
+            last++;
+        }
+        return Arrays.copyOfRange(pageCharStarts, first, last);
+    }
+
+    // Drops the decoded pages overlapping [start, end) after their bytes were rewritten in place, so they are decoded again
+    public void invalidate(int start, int end) {
+        synchronized (cache) {
+            for (int page = pageIndexFor(start); page < pageCount && pageCharStarts[page] < end; page++) {
+                cache.remove(page);
+            }
+            lastPage = null;
+        }
+    }
+
+    private Page pageFor(int index) {
+        Page page = lastPage;
+        if (page != null && index >= page.charStart && index < page.charStart + page.chars.length) {
+            return page;
+        }
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        int pageIndex = pageIndexFor(index);
+        page = new Page(pageCharStarts[pageIndex], decodePage(pageIndex));
+        lastPage = page;
+        return page;
+    }
+
+    // Binary search for the last page starting at or before index
+    private int pageIndexFor(int index) {
+        int low = 0;
+        int high = pageCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (pageCharStarts[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private char[] decodePage(int page) {
+        synchronized (cache) {
+            char[] chars = cache.get(page);
+            if (chars == null) {
+                ByteBuffer input = slice(pageByteStarts[page]);
+                long end = page + 1 < pageCount ? pageByteStarts[page + 1] : size;
+                input.limit(input.position() + (int) (end - pageByteStarts[page]));
+                chars = new char[pageCharStarts[page + 1] - pageCharStarts[page]];
+                CharBuffer output = CharBuffer.wrap(chars);
+                pageDecoder.reset();
+                pageDecoder.decode(input, output, true);
+                pageDecoder.flush(output);
+                cache.put(page, chars);
+            }
+            return chars;
+        }
+    }
+
+    // Returns a buffer positioned at byteOffset that extends at least one page further, or to the end of the file
+    private ByteBuffer slice(long byteOffset) {
+        int segment = (int) (byteOffset / SEGMENT_BYTES);
+        ByteBuffer buffer = segments[segment].duplicate();
+        buffer.position((int) (byteOffset - segment * SEGMENT_BYTES));
+        buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + (long) PAGE_BYTES));
+        return buffer;
+    }
+
+    private CharsetDecoder newDecoder() {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private static final class Page {
+        final int charStart;
+        final char[] chars;
+
+        Page(int charStart, char[] chars) {
+            this.charStart = charStart;
+            this.chars = chars;
+        }
+    }
+}
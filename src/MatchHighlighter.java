@@ -0,0 +1,81 @@
+/**
+ * MatchHighlighter.java
+ *
+ * Highlights every match of the current search using a single highlight painter instead of one highlight per match.
+ * On each paint it works out which offsets are visible in the text area, binary-searches the match index for the
+ * matches in that range and paints only those, so the cost of a repaint depends on the size of the viewport rather
+ * than on the number of matches.
+ */
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
+import javax.swing.text.JTextComponent;
+import java.awt.*;
+
+public class MatchHighlighter implements Highlighter.HighlightPainter {
+    private static final Color MATCH_COLOR = new Color(255, 236, 140);
+
+    private final JTextComponent textComponent;
+    private final Highlighter.HighlightPainter matchPainter = new DefaultHighlighter.DefaultHighlightPainter(MATCH_COLOR);
+    private MatchIndex matches = MatchIndex.EMPTY;
+    private Object highlightTag;
+
+    public MatchHighlighter(JTextComponent textComponent) {
+        this.textComponent = textComponent;
+        install();
+        textComponent.addPropertyChangeListener("document", e -> install()); // The highlight would otherwise keep the old document alive
+    }
+
+    public void setMatches(MatchIndex matches) {
+        this.matches = matches;
+        textComponent.repaint();
+    }
+
+    @Override
+    public void paint(Graphics g, int p0, int p1, Shape bounds, JTextComponent c) {
+        if (matches.isEmpty()) {
+            return;
+        }
+        Rectangle visible = c.getVisibleRect();
+        Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            visible = visible.intersection(clip);
+        }
+        if (visible.isEmpty()) {
+            return;
+        }
+        // Widen the visible range to whole lines, a match starting left of a horizontally scrolled view still shows
+        Element root = c.getDocument().getDefaultRootElement();
+        int top = c.viewToModel2D(new Point(visible.x, visible.y));
+        int bottom = c.viewToModel2D(new Point(visible.x + visible.width, visible.y + visible.height));
+        int start = root.getElement(root.getElementIndex(top)).getStartOffset();
+        int end = root.getElement(root.getElementIndex(bottom)).getEndOffset();
+        int match = matches.firstStartingAt(start);
+        if (match > 0 && matches.end(match - 1) > start) { // The match before may reach into view from above
+            match--;
+        }
+        int length = c.getDocument().getLength();
+        for (; match < matches.size() && matches.start(match) < end; match++) {
+            int matchStart = matches.start(match);
+            int matchEnd = Math.min(matches.end(match), length);
+            if (matchStart < matchEnd) { // Empty matches have nothing to paint, and offsets past the end are stale
+                matchPainter.paint(g, matchStart, matchEnd, bounds, c);
+            }
+        }
+    }
+
+    // Adds the one highlight whose painter draws all the matches, replacing the one on the previous document
+    private void install() {
+        Highlighter highlighter = textComponent.getHighlighter();
+        if (highlightTag != null) {
+            highlighter.removeHighlight(highlightTag);
+        }
+        try {
+            highlightTag = highlighter.addHighlight(0, 0, this);
+        } catch (BadLocationException badLocation) {
+            badLocation.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * MatchIndex.java
+ *
+ * Immutable, sorted index of every match found by a search, stored as parallel primitive arrays of start and end
+ * offsets. Moving to the next or previous match from any caret position is a binary search, so traversal costs
+ * O(log m) in either direction and no boxed integers are created however many matches there are.
+ */
+
+import java.util.Arrays;
+
+public final class MatchIndex {
+    public static final MatchIndex EMPTY = new MatchIndex(new int[0], new int[0], 0);
+
+    private final int[] starts;
+    private final int[] ends;
+    private final int size;
+
+    private MatchIndex(int[] starts, int[] ends, int size) {
+        this.starts = starts;
+        this.ends = ends;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int start(int match) {
+        return starts[match];
+    }
+
+    public int end(int match) {
+        return ends[match];
+    }
+
+    // Returns the first match starting at or after offset, wrapping around to the first match, or -1 if there are none
+    public int next(int offset) {
+        if (size == 0) {
+            return -1;
+        }
+        int match = firstStartingAt(offset);
+        return match < size ? match : 0;
+    }
+
+    // Returns the last match starting before offset, wrapping around to the last match, or -1 if there are none
+    public int previous(int offset) {
+        if (size == 0) {
+            return -1;
+        }
+        int match = firstStartingAt(offset) - 1;
+        return match >= 0 ? match : size - 1;
+    }
+
+    // Binary search for the first match whose start is at least offset
+    public int firstStartingAt(int offset) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Collects matches in ascending order of start offset
+    public static final class Builder {
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private int size;
+
+        public Builder add(int start, int end) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+            return this;
+        }
+
+        // Appends every match collected by other, which must all start after the matches collected so far
+        public Builder addAll(Builder other) {
+            if (size + other.size > starts.length) {
+                starts = Arrays.copyOf(starts, Math.max(starts.length * 2, size + other.size));
+                ends = Arrays.copyOf(ends, starts.length);
+            }
+            System.arraycopy(other.starts, 0, starts, size, other.size);
+            System.arraycopy(other.ends, 0, ends, size, other.size);
+            size += other.size;
+            return this;
+        }
+
+        public MatchIndex build() {
+            return size == 0 ? EMPTY : new MatchIndex(Arrays.copyOf(starts, size), Arrays.copyOf(ends, size), size);
+        }
+    }
+}
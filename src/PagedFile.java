@@ -0,0 +1,266 @@
+/**
+ * PagedFile.java
+ *
+ * Read-only view of a file of any size, addressed by byte offset instead of char index so it is not limited to the
+ * 2 GB a document can hold. The file is memory-mapped and split into pages of about PAGE_BYTES that end just after a
+ * line break, which makes every page start a char boundary and a line start at once. Opening records each page's
+ * byte offset and the number of the line it starts, a sparse line index that costs a few bytes per page. Pages are
+ * decoded on demand and only the CACHED_PAGES most recently used are kept, so the heap used does not grow with the file.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+public class PagedFile {
+    private static final int PAGE_BYTES = 64 * 1024; // A page ends at the first line break after this many bytes
+    private static final int MAX_PAGE_BYTES = 1024 * 1024; // Inside a longer line the page is cut at a char boundary instead
+    private static final long SEGMENT_BYTES = 1L << 30; // A single mapping is limited to 2 GB, so the file is mapped in 1 GB segments
+    private static final int SEGMENT_OVERLAP = MAX_PAGE_BYTES + 16; // Segments overlap so that any page lies entirely inside one of them
+    private static final int CACHED_PAGES = 64;
+
+    private final Path path;
+    private final TextEncoding encoding;
+    private final long size;
+    private final MappedByteBuffer[] segments;
+    private final byte[] newline; // A line break in the file's encoding
+    private long[] pageStarts; // Byte offset where each page starts, with the file size appended
+    private long[] pageLines; // Number of line breaks before each page, with the total appended
+    private int pageCount;
+    private final Map<Integer, char[]> cache = new LinkedHashMap<>(CACHED_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, char[]> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+    private final CharsetDecoder pageDecoder; // Reused for every cached page, guarded by the cache lock
+
+    // progress is told how many bytes have been indexed after every page and may throw to abandon opening the file
+    public PagedFile(Path path, TextEncoding encoding, LongConsumer progress) throws IOException {
+        this.path = path;
+        this.encoding = encoding;
+        pageDecoder = encoding.newDecoder();
+        ByteBuffer encodedNewline = encoding.newEncoder().encode(CharBuffer.wrap("\n"));
+        newline = new byte[encodedNewline.remaining()];
+        encodedNewline.get(newline);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) { // Mappings stay valid after the channel is closed
+            size = channel.size();
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = i * SEGMENT_BYTES;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, SEGMENT_BYTES + SEGMENT_OVERLAP));
+            }
+        }
+        pageStarts = new long[1024];
+        pageLines = new long[1024];
+        long start = encoding.bomLength();
+        long lines = 0;
+        while (start < size || pageCount == 0) {
+            if (pageCount + 1 == pageStarts.length) {
+                pageStarts = Arrays.copyOf(pageStarts, pageStarts.length * 2);
+                pageLines = Arrays.copyOf(pageLines, pageLines.length * 2);
+            }
+            pageStarts[pageCount] = start;
+            pageLines[pageCount] = lines;
+            pageCount++;
+            long end = pageEnd(start);
+            lines += countLines(start, end);
+            start = end;
+            progress.accept(start);
+        }
+        pageStarts[pageCount] = size;
+        pageLines[pageCount] = lines;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public TextEncoding getEncoding() {
+        return encoding;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int pageCount() {
+        return pageCount;
+    }
+
+    public long lineCount() {
+        return pageLines[pageCount] + 1;
+    }
+
+    public long pageStart(int page) {
+        return pageStarts[page];
+    }
+
+    // Line the first char of page belongs to, counting from 0
+    public long pageLine(int page) {
+        return pageLines[page];
+    }
+
+    // Page holding byteOffset, the last page for the end of the file
+    public int pageOf(long byteOffset) {
+        int page = Arrays.binarySearch(pageStarts, 0, pageCount, byteOffset);
+        return page >= 0 ? page : Math.max(0, -page - 2);
+    }
+
+    // Page on which line starts
+    public int pageOfLine(long line) {
+        int low = 0;
+        int high = pageCount - 1;
+        while (low < high) { // Last page whose first line is before line, or which starts with it
+            int mid = (low + high + 1) >>> 1;
+            if (pageLines[mid] < line || (pageLines[mid] == line && startsLine(mid))) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // Decoded chars of page, from the cache when it was used recently
+    public char[] page(int page) {
+        synchronized (cache) {
+            char[] chars = cache.get(page);
+            if (chars == null) {
+                chars = decode(page, pageDecoder);
+                cache.put(page, chars);
+            }
+            return chars;
+        }
+    }
+
+    // Decodes page with decoder without caching it, for scans over the whole file that would only evict the pages on screen
+    public char[] decode(int page, CharsetDecoder decoder) {
+        ByteBuffer bytes = slice(pageStarts[page], (int) (pageStarts[page + 1] - pageStarts[page]));
+        CharBuffer chars = CharBuffer.allocate((int) (bytes.remaining() * (double) decoder.maxCharsPerByte()) + 1);
+        decoder.reset();
+        decoder.decode(bytes, chars, true);
+        decoder.flush(chars);
+        return Arrays.copyOf(chars.array(), chars.position());
+    }
+
+    // Number of chars on page before byteOffset
+    public int charsBefore(int page, long byteOffset) {
+        long end = Math.min(alignToChar(Math.max(byteOffset, pageStarts[page])), pageStarts[page + 1]);
+        ByteBuffer bytes = slice(pageStarts[page], (int) (end - pageStarts[page]));
+        CharsetDecoder decoder = encoding.newDecoder();
+        CharBuffer chars = CharBuffer.allocate((int) (bytes.remaining() * (double) decoder.maxCharsPerByte()) + 1);
+        decoder.decode(bytes, chars, true);
+        decoder.flush(chars);
+        return chars.position();
+    }
+
+    // Where the page starting at start ends: after the first line break past PAGE_BYTES, or at a char boundary
+    // MAX_PAGE_BYTES on when the line goes on longer than that
+    private long pageEnd(long start) {
+        if (size - start <= PAGE_BYTES) {
+            return size;
+        }
+        long limit = Math.min(size, start + MAX_PAGE_BYTES);
+        ByteBuffer bytes = slice(start, (int) (limit - start));
+        int base = bytes.position();
+        for (int i = PAGE_BYTES; i + newline.length <= bytes.remaining(); i++) {
+            if (isNewline(bytes, base + i, start + i)) {
+                return start + i + newline.length;
+            }
+        }
+        return limit == size ? size : alignToChar(limit);
+    }
+
+    private long countLines(long start, long end) {
+        ByteBuffer bytes = slice(start, (int) (end - start));
+        int base = bytes.position();
+        int limit = bytes.limit();
+        long lines = 0;
+        if (newline.length == 1) { // Every byte equal to the line break is one
+            byte lineBreak = newline[0];
+            for (int i = base; i < limit; i++) {
+                if (bytes.get(i) == lineBreak) {
+                    lines++;
+                }
+            }
+            return lines;
+        }
+        for (int i = 0; i + newline.length <= bytes.remaining(); i++) {
+            if (isNewline(bytes, base + i, start + i)) {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    private boolean isNewline(ByteBuffer bytes, int index, long byteOffset) {
+        if ((byteOffset - encoding.bomLength()) % newline.length != 0) { // Only whole code units count
+            return false;
+        }
+        for (int i = 0; i < newline.length; i++) {
+            if (bytes.get(index + i) != newline[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether page starts right after a line break rather than inside a long line
+    private boolean startsLine(int page) {
+        long start = pageStarts[page];
+        if (start - newline.length < encoding.bomLength()) {
+            return true;
+        }
+        ByteBuffer bytes = slice(start - newline.length, newline.length);
+        return isNewline(bytes, bytes.position(), start - newline.length);
+    }
+
+    // Moves byteOffset back to the start of the char it falls in. UTF-8 continuation bytes and the second half of a
+    // UTF-16 code unit or surrogate pair are recognised; other multi-byte charsets are cut where they are
+    private long alignToChar(long byteOffset) {
+        long textStart = encoding.bomLength();
+        if (encoding.getCharset().equals(StandardCharsets.UTF_8)) {
+            for (int back = 0; back < 3 && byteOffset > textStart && (byteAt(byteOffset) & 0xC0) == 0x80; back++) {
+                byteOffset--;
+            }
+        } else if (newline.length == 2) {
+            byteOffset -= (byteOffset - textStart) % 2;
+            boolean bigEndian = newline[1] == '\n';
+            if (byteOffset - 2 >= textStart) {
+                int high = byteAt(bigEndian ? byteOffset - 2 : byteOffset - 1) & 0xFF;
+                if (high >= 0xD8 && high <= 0xDB) { // The previous unit is the first half of a surrogate pair
+                    byteOffset -= 2;
+                }
+            }
+        }
+        return byteOffset;
+    }
+
+    private byte byteAt(long byteOffset) {
+        ByteBuffer bytes = slice(byteOffset, 1);
+        return bytes.get(bytes.position());
+    }
+
+    // Returns a buffer over the length bytes at byteOffset, which must lie within one page
+    private ByteBuffer slice(long byteOffset, int length) {
+        if (length == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        int segment = (int) (byteOffset / SEGMENT_BYTES);
+        ByteBuffer buffer = segments[segment].duplicate();
+        buffer.position((int) (byteOffset - segment * SEGMENT_BYTES));
+        buffer.limit(buffer.position() + length);
+        return buffer;
+    }
+}
@@ -0,0 +1,371 @@
+/**
+ * Pager.java
+ *
+ * Read-only pager mode for files too big to load as a document. The text area shows a window of WINDOW_PAGES
+ * consecutive pages of a PagedFile, and scrolling close to either end of the window slides it half a window along,
+ * keeping the same text at the top of the viewport. Going to a line or byte offset looks it up in the file's sparse
+ * line index and moves the window there. Searches scan the file a page at a time from the caret, decoding each page
+ * outside the page cache, so neither the window nor the search ever holds more than a few pages. Pages end at line
+ * breaks, so a match that spans a line break across two pages is not found. Inside a line longer than a megabyte a
+ * page is cut wherever its size runs out, and a match crossing that cut is missed too.
+ *
+ * Loading a file costs heap for every line, about LINE_HEAP_BYTES for its element and positions, while the text of
+ * a big file stays mapped outside the heap. The default PAGER_THRESHOLD lets a file of short lines take up to half
+ * the heap that way, anything bigger is paged.
+ */
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.awt.*;
+import java.awt.event.AdjustmentListener;
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+public class Pager {
+    private static final int LINE_HEAP_BYTES = 128; // Heap taken by each line of a loaded document: its element, positions and line index entry
+    private static final int SHORT_LINE_BYTES = 32; // Line length assumed for the default threshold, as in logs and traces
+    public static final long PAGER_THRESHOLD = Long.getLong("texteditor.pagerThreshold", // Files bigger than this many bytes open in pager mode
+            Math.min(Runtime.getRuntime().maxMemory() / 2 / LINE_HEAP_BYTES * SHORT_LINE_BYTES, Integer.MAX_VALUE));
+    private static final String FIRST_LINE = "Pager.firstLine"; // Document property holding the file line number of the window's first line
+    private static final int WINDOW_PAGES = 16; // Pages shown at once, about a megabyte of text
+
+    private final PagedFile file;
+    private final JTextArea textArea;
+    private final JScrollPane scrollPane;
+    private final AdjustmentListener slider = e -> slideNearEdge();
+    private int firstPage; // First page of the window
+    private int[] pageChars; // Offset in the window document where each of its pages starts, with its length appended
+    private boolean sliding; // Set while the window is being replaced, the scrolling that causes is not the user's
+
+    public Pager(PagedFile file, JTextArea textArea) {
+        this.file = file;
+        this.textArea = textArea;
+        scrollPane = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, textArea);
+        if (scrollPane != null) {
+            scrollPane.getVerticalScrollBar().addAdjustmentListener(slider);
+        }
+        sliding = true;
+        try {
+            showWindow(0);
+        } finally {
+            sliding = false;
+        }
+    }
+
+    public static boolean shouldPage(Path path) throws IOException {
+        return Files.size(path) > PAGER_THRESHOLD;
+    }
+
+    // File line number of the first line of document, 0 for documents that are not a pager window
+    public static long firstLineOf(Document document) {
+        Object firstLine = document.getProperty(FIRST_LINE);
+        return firstLine instanceof Long ? (Long) firstLine : 0;
+    }
+
+    public PagedFile getFile() {
+        return file;
+    }
+
+    // Stops following the scroll pane, the text area is about to get a document of its own
+    public void close() {
+        if (scrollPane != null) {
+            scrollPane.getVerticalScrollBar().removeAdjustmentListener(slider);
+        }
+    }
+
+    // Moves the caret to the start of line, counting from 0
+    public void goToLine(long line) {
+        int page = file.pageOfLine(line);
+        sliding = true;
+        try {
+            showWindow(windowStartFor(page));
+            LineIndex lines = LineIndex.of(textArea.getDocument());
+            int windowLine = (int) Math.min(Math.max(0, line - file.pageLine(firstPage)), lines.lineCount() - 1);
+            textArea.setCaretPosition(lines.lineStart(windowLine));
+        } finally {
+            sliding = false;
+        }
+    }
+
+    // Moves the caret to the char starting at byteOffset in the file
+    public void goToOffset(long byteOffset) {
+        int page = file.pageOf(byteOffset);
+        sliding = true;
+        try {
+            showWindow(windowStartFor(page));
+            textArea.setCaretPosition(pageChars[page - firstPage] + file.charsBefore(page, byteOffset));
+        } finally {
+            sliding = false;
+        }
+    }
+
+    // Finds the next match after the selection, or the last one before it, starting a page at a time from the caret
+    // and wrapping around the end of the file
+    public Search search(ParallelSearch.RangeSearcher searcher, boolean forward) {
+        int offset = forward ? textArea.getSelectionEnd() : textArea.getSelectionStart();
+        if (forward && textArea.getSelectionStart() == textArea.getSelectionEnd()) {
+            offset = textArea.getCaretPosition();
+        }
+        int page = pageAt(offset);
+        return new Search(searcher, forward, page, offset - pageChars[page - firstPage]);
+    }
+
+    // Selects the match found by search, moving the window to it when it is elsewhere in the file
+    public void select(Search search) {
+        int[] match = search.getMatch();
+        if (match == null) {
+            return;
+        }
+        int page = match[0];
+        sliding = true;
+        try {
+            if (windowOffset(page, 0) < 0) {
+                showWindow(windowStartFor(page));
+            }
+            int base = windowOffset(page, 0);
+            textArea.setCaretPosition(base + match[2]);
+            textArea.select(base + match[1], base + match[2]);
+        } finally {
+            sliding = false;
+        }
+    }
+
+    // File line number of the line holding the window offset
+    public long lineOf(int offset) {
+        return firstLineOf(textArea.getDocument()) + LineIndex.of(textArea.getDocument()).lineOf(offset);
+    }
+
+    private int windowStartFor(int page) { // A quarter of the window above page, so there is some text to scroll back to
+        return Math.max(0, Math.min(page - WINDOW_PAGES / 4, file.pageCount() - WINDOW_PAGES));
+    }
+
+    // Page of the window holding offset
+    private int pageAt(int offset) {
+        int index = Arrays.binarySearch(pageChars, 0, pageChars.length - 1, offset);
+        return firstPage + (index >= 0 ? index : Math.max(0, -index - 2));
+    }
+
+    // Replaces the window with the one starting at first. Called with sliding set, so the scrolling this causes is
+    // not taken for the user's
+    private void showWindow(int first) {
+        int last = Math.min(file.pageCount(), first + WINDOW_PAGES);
+        int[] starts = new int[last - first + 1];
+        StringBuilder text = new StringBuilder();
+        for (int page = first; page < last; page++) {
+            starts[page - first] = text.length();
+            text.append(file.page(page));
+        }
+        starts[last - first] = text.length();
+        firstPage = first;
+        pageChars = starts;
+        PieceTableDocument document = new PieceTableDocument(text);
+        document.putProperty(FIRST_LINE, file.pageLine(first));
+        file.getEncoding().recordOn(document);
+        textArea.setDocument(document);
+        textArea.setEditable(false);
+        if (scrollPane != null) {
+            scrollPane.validate(); // Lays out the new document before anything scrolls within it
+        }
+    }
+
+    // Slides the window half its length towards the end the viewport has come within a screen of
+    private void slideNearEdge() {
+        if (sliding) {
+            return;
+        }
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        int extent = bar.getVisibleAmount();
+        int first = firstPage;
+        if (bar.getValue() + 2 * extent >= bar.getMaximum() && firstPage + pageChars.length - 1 < file.pageCount()) {
+            first = Math.min(firstPage + WINDOW_PAGES / 2, file.pageCount() - WINDOW_PAGES);
+        } else if (bar.getValue() <= extent && firstPage > 0) {
+            first = Math.max(0, firstPage - WINDOW_PAGES / 2);
+        }
+        if (first == firstPage) {
+            return;
+        }
+        JViewport viewport = scrollPane.getViewport();
+        Point position = viewport.getViewPosition();
+        sliding = true;
+        try {
+            // Remember which char is at the top of the viewport and where the caret is, as page and offset in page
+            int top = textArea.viewToModel2D(position);
+            double topShift = position.y - textArea.modelToView2D(top).getY();
+            int topPage = pageAt(top);
+            int topChar = top - pageChars[topPage - firstPage];
+            int caret = textArea.getCaretPosition();
+            int caretPage = pageAt(caret);
+            int caretChar = caret - pageChars[caretPage - firstPage];
+            showWindow(first);
+            int newTop = windowOffset(topPage, topChar);
+            int newCaret = windowOffset(caretPage, caretChar);
+            textArea.setCaretPosition(newCaret >= 0 ? newCaret : Math.max(0, newTop));
+            Rectangle2D topBounds = textArea.modelToView2D(Math.max(0, newTop));
+            viewport.setViewPosition(new Point(position.x, (int) (topBounds.getY() + topShift)));
+        } catch (BadLocationException badLocation) {
+            badLocation.printStackTrace();
+        } finally {
+            sliding = false;
+        }
+    }
+
+    // Offset in the window document of the char at offset in page, or -1 when page is outside the window
+    private int windowOffset(int page, int offset) {
+        if (page < firstPage || page >= firstPage + pageChars.length - 1) {
+            return -1;
+        }
+        return pageChars[page - firstPage] + offset;
+    }
+
+    // Maps and indexes a file for the pager in the background, showing its first page while the rest is indexed
+    public static class Opener extends SwingWorker<PagedFile, String> {
+        private static final int PREVIEW_BYTES = 64 * 1024; // Bytes of the file shown while it is being indexed
+
+        private final Path path;
+        private final JTextArea textArea;
+        private final Document previous; // Put back if opening fails or is cancelled
+
+        public Opener(Path path, JTextArea textArea) {
+            this.path = path;
+            this.textArea = textArea;
+            previous = textArea.getDocument();
+            textArea.setDocument(new PieceTableDocument());
+            textArea.setEditable(false);
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        // The indexed file once opening has succeeded, otherwise null
+        public PagedFile getFile() {
+            try {
+                return isDone() && !isCancelled() ? get() : null;
+            } catch (InterruptedException | ExecutionException openException) {
+                return null;
+            }
+        }
+
+        @Override
+        protected PagedFile doInBackground() throws IOException {
+            TextEncoding encoding;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                encoding = TextEncoding.detect(channel);
+            }
+            long size = Files.size(path);
+            boolean[] previewed = {false};
+            return new PagedFile(path, encoding, indexed -> {
+                if (isCancelled()) {
+                    throw new CancellationException();
+                }
+                setProgress((int) (100 * indexed / Math.max(1, size)));
+                if (!previewed[0]) { // The first page is complete once anything has been indexed
+                    previewed[0] = true;
+                    publish(preview(encoding));
+                }
+            });
+        }
+
+        @Override
+        protected void process(List<String> previews) {
+            textArea.setDocument(new PieceTableDocument(previews.get(0)));
+            textArea.setEditable(false);
+        }
+
+        @Override
+        protected void done() {
+            try {
+                get();
+            } catch (CancellationException cancelled) {
+                textArea.setDocument(previous);
+                textArea.setEditable(true);
+            } catch (InterruptedException | ExecutionException openException) {
+                openException.printStackTrace();
+                textArea.setDocument(previous);
+                textArea.setEditable(true);
+            }
+        }
+
+        // Decodes the start of the file, leaving out a char cut in half by the end of the preview
+        private String preview(TextEncoding encoding) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer bytes = ByteBuffer.allocate(PREVIEW_BYTES);
+                channel.read(bytes, encoding.bomLength());
+                bytes.flip();
+                CharBuffer chars = CharBuffer.allocate(PREVIEW_BYTES);
+                encoding.newDecoder().decode(bytes, chars, false);
+                return chars.flip().toString();
+            } catch (IOException ioException) {
+                return "";
+            }
+        }
+    }
+
+    // Scans the file a page at a time for the next or previous match, see search
+    public class Search extends SwingWorker<int[], Void> {
+        private final ParallelSearch.RangeSearcher searcher;
+        private final boolean forward;
+        private final int startPage;
+        private final int startChar; // Offset in startPage the search starts from
+
+        private Search(ParallelSearch.RangeSearcher searcher, boolean forward, int startPage, int startChar) {
+            this.searcher = searcher;
+            this.forward = forward;
+            this.startPage = startPage;
+            this.startChar = startChar;
+        }
+
+        // {page, start, end} of the match found, null when there is none or the search did not finish
+        public int[] getMatch() {
+            try {
+                return isDone() && !isCancelled() ? get() : null;
+            } catch (InterruptedException | ExecutionException searchException) {
+                return null;
+            }
+        }
+
+        @Override
+        protected int[] doInBackground() {
+            CharsetDecoder decoder = file.getEncoding().newDecoder();
+            int pageCount = file.pageCount();
+            for (int step = 0; step <= pageCount; step++) { // The start page comes round again last, for what lies on the other side of the caret
+                if (isCancelled()) {
+                    throw new CancellationException();
+                }
+                int page = Math.floorMod(forward ? startPage + step : startPage - step, pageCount);
+                char[] chars = file.decode(page, decoder);
+                MatchIndex.Builder builder = new MatchIndex.Builder();
+                searcher.search(CharBuffer.wrap(chars), 0, chars.length, builder);
+                MatchIndex matches = builder.build();
+                int match = -1;
+                if (!matches.isEmpty()) {
+                    int at = matches.firstStartingAt(startChar);
+                    if (step == 0) {
+                        match = forward ? (at < matches.size() ? at : -1) : at - 1;
+                    } else if (step == pageCount) {
+                        match = forward ? (matches.start(0) < startChar ? 0 : -1) : (matches.start(matches.size() - 1) >= startChar ? matches.size() - 1 : -1);
+                    } else {
+                        match = forward ? 0 : matches.size() - 1;
+                    }
+                }
+                if (match >= 0) {
+                    return new int[]{page, matches.start(match), matches.end(match)};
+                }
+                setProgress(100 * step / (pageCount + 1));
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * ParallelSearch.java
+ *
+ * Splits a text into chunks that end on line boundaries and searches them on the common ForkJoinPool, merging the
+ * matches of every chunk back in document order. Only searches whose matches can never span a line break are split,
+ * since those are guaranteed to find exactly what a single sequential pass would; anything else runs on one thread.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.IntStream;
+
+public final class ParallelSearch {
+    private static final int CHUNK_CHARS = 1 << 20; // Texts shorter than two chunks are not worth splitting
+    private static final Pattern MULTI_LINE_CONSTRUCTS = Pattern.compile( // Syntax outside of character classes that may match a line terminator or depend on where the previous match ended
+            "[\\n\\r]|\\\\[nrsSWDRvVHXxu0cpPNGQ]|\\(\\?[a-zA-Z-]*[sx]");
+
+    // Finds the matches of one search that start in [from, to) and adds them to matches in order. The searcher may look
+    // at text outside the range, for instance for lookarounds, but must not report matches starting outside of it
+    @FunctionalInterface
+    public interface RangeSearcher {
+        void search(CharSequence text, int from, int to, MatchIndex.Builder matches);
+    }
+
+    private ParallelSearch() {
+    }
+
+    // Runs searcher over the whole text, in parallel when lineBounded promises no match contains a line break. Throws
+    // CancellationException once cancelled returns true, which is checked before every chunk. texts supplies a view of
+    // the same text for every thread taking part, since views such as DocumentText cannot be shared
+    public static MatchIndex search(Supplier<? extends CharSequence> texts, RangeSearcher searcher, boolean lineBounded, BooleanSupplier cancelled) {
+        CharSequence text = texts.get();
+        int length = text.length();
+        if (!lineBounded || length < 2 * CHUNK_CHARS) {
+            MatchIndex.Builder matches = new MatchIndex.Builder();
+            searcher.search(text, 0, length, matches);
+            return matches.build();
+        }
+        int[] bounds = chunkBounds(text);
+        int chunks = bounds.length - 1;
+        MatchIndex.Builder[] chunkMatches = new MatchIndex.Builder[chunks];
+        IntStream.range(0, chunks).parallel().forEach(chunk -> { // Parallel streams run on the common ForkJoinPool
+            if (cancelled.getAsBoolean()) {
+                throw new CancellationException();
+            }
+            chunkMatches[chunk] = new MatchIndex.Builder();
+            searcher.search(texts.get(), bounds[chunk], bounds[chunk + 1], chunkMatches[chunk]);
+        });
+        MatchIndex.Builder matches = new MatchIndex.Builder();
+        for (MatchIndex.Builder chunk : chunkMatches) {
+            matches.addAll(chunk);
+        }
+        return matches.build();
+    }
+
+    // Searcher running pattern over a range. Transparent, non-anchoring bounds make a match found inside a chunk
+    // identical to the one a matcher over the whole text would find there. The matcher reads the text through a
+    // watchdog, so a runaway pattern throws SearchTimeoutException after deadline and CancellationException once cancelled
+    public static RangeSearcher regex(Pattern pattern, long deadline, BooleanSupplier cancelled) {
+        return regex(pattern, text -> new WatchdogCharSequence(text, deadline, cancelled));
+    }
+
+    // Same searcher without a deadline, for searches that run as long as they take unless cancelled
+    public static RangeSearcher regex(Pattern pattern, BooleanSupplier cancelled) {
+        return regex(pattern, text -> new WatchdogCharSequence(text, cancelled));
+    }
+
+    private static RangeSearcher regex(Pattern pattern, Function<CharSequence, WatchdogCharSequence> watchdog) {
+        return (text, from, to, matches) -> {
+            Matcher matcher = pattern.matcher(watchdog.apply(text));
+            matcher.useTransparentBounds(true);
+            matcher.useAnchoringBounds(false);
+            matcher.region(from, to);
+            while (matcher.find() && (matcher.start() < to || to == text.length())) { // An empty match at to belongs to the next chunk
+                matches.add(matcher.start(), matcher.end());
+            }
+        };
+    }
+
+    // Conservative check that pattern cannot match across a line break, based on its flags and syntax. Character classes
+    // are compiled on their own and tried on \n and \r, since ranges such as [\t-z] hold line breaks without naming them
+    public static boolean isLineBounded(Pattern pattern) {
+        if ((pattern.flags() & (Pattern.DOTALL | Pattern.COMMENTS)) != 0) {
+            return false;
+        }
+        String regex = pattern.pattern();
+        StringBuilder outsideClasses = new StringBuilder();
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') { // An escaped char, which may be a [
+                outsideClasses.append(regex, i, Math.min(i + 2, regex.length()));
+                i++;
+            } else if (c != '[') {
+                outsideClasses.append(c);
+            } else {
+                int end = classEnd(regex, i);
+                if (end < 0 || matchesLineBreak(regex.substring(i, end), pattern.flags())) {
+                    return false;
+                }
+                i = end - 1;
+            }
+        }
+        return !MULTI_LINE_CONSTRUCTS.matcher(outsideClasses).find();
+    }
+
+    // Offset just past the character class starting at the [ at start, including any classes nested in it, or -1 when
+    // it does not end
+    private static int classEnd(String regex, int start) {
+        int i = start + 1;
+        if (i < regex.length() && regex.charAt(i) == '^') {
+            i++;
+        }
+        if (i < regex.length() && regex.charAt(i) == ']') { // A ] right after the [ is taken literally
+            i++;
+        }
+        for (; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') { // Quoted chars up to \E
+                int quoteEnd = regex.indexOf("\\E", i + 2);
+                if (quoteEnd < 0) {
+                    return -1;
+                }
+                i = quoteEnd + 1;
+            } else if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                int end = classEnd(regex, i);
+                if (end < 0) {
+                    return -1;
+                }
+                i = end - 1;
+            } else if (c == ']') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    // Whether the character class characterClass, compiled with flags, matches a line break
+    private static boolean matchesLineBreak(String characterClass, int flags) {
+        try {
+            Pattern compiled = Pattern.compile(characterClass, flags);
+            return compiled.matcher("\n").matches() || compiled.matcher("\r").matches();
+        } catch (PatternSyntaxException e) {
+            return true; // Not a class of its own after all, so nothing is known about it
+        }
+    }
+
+    // Offsets splitting text into chunks of roughly CHUNK_CHARS, each ending just after a newline
+    private static int[] chunkBounds(CharSequence text) {
+        int length = text.length();
+        int[] bounds = new int[length / CHUNK_CHARS + 2];
+        int count = 1; // bounds[0] is 0
+        int bound = CHUNK_CHARS;
+        while (bound < length) {
+            while (bound < length && text.charAt(bound - 1) != '\n') { // Move forward to the next line start
+                bound++;
+            }
+            if (bound < length) {
+                bounds[count++] = bound;
+            }
+            bound += CHUNK_CHARS;
+        }
+        bounds[count++] = length;
+        return Arrays.copyOf(bounds, count);
+    }
+}
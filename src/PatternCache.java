@@ -0,0 +1,73 @@
+/**
+ * PatternCache.java
+ *
+ * Bounded, least-recently-used cache of compiled patterns shared by every feature that searches the text. Patterns are
+ * keyed by their source and compile flags, so running one of the usual queries again never recompiles it.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+public final class PatternCache {
+    private static final int MAX_PATTERNS = 64;
+
+    private static final Map<Key, Pattern> patterns = new LinkedHashMap<>(MAX_PATTERNS, 0.75f, true) { // Access order makes the eldest entry the least recently used
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Pattern> eldest) {
+            return size() > MAX_PATTERNS;
+        }
+    };
+
+    private PatternCache() {
+    }
+
+    // Returns the pattern for a search query. A query that is not a regex is matched literally
+    public static Pattern get(String query, boolean regex, boolean ignoreCase, boolean multiline) {
+        int flags = (regex ? 0 : Pattern.LITERAL)
+                | (ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0)
+                | (multiline ? Pattern.MULTILINE : 0);
+        return compile(query, flags);
+    }
+
+    // Same as Pattern.compile(regex, flags), reusing an earlier compilation when there is one
+    public static Pattern compile(String regex, int flags) {
+        Key key = new Key(regex, flags);
+        synchronized (patterns) {
+            Pattern pattern = patterns.get(key);
+            if (pattern != null) {
+                return pattern;
+            }
+        }
+        Pattern pattern = Pattern.compile(regex, flags); // Compiled outside the lock, a syntax error is thrown to the caller and not cached
+        synchronized (patterns) {
+            patterns.put(key, pattern);
+        }
+        return pattern;
+    }
+
+    private static final class Key {
+        final String regex;
+        final int flags;
+
+        Key(String regex, int flags) {
+            this.regex = regex;
+            this.flags = flags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return flags == key.flags && regex.equals(key.regex);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(regex, flags);
+        }
+    }
+}
@@ -0,0 +1,780 @@
+/**
+ * PieceTableContent.java
+ *
+ * Document content backed by a piece table: the text of the opened file is kept untouched in an original buffer,
+ * everything typed afterwards is appended to an add buffer, and the document is described by an ordered list of
+ * pieces pointing into one of the two buffers. Inserting or removing text only splits or trims pieces, so an edit
+ * costs O(pieces) instead of shifting every character that follows it. The piece holding an offset is found by a
+ * binary search over the start of every piece, worked out again on the first lookup after the pieces change, so a
+ * document cut into millions of pieces by a replace-all still reads quickly.
+ */
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class PieceTableContent implements AbstractDocument.Content {
+    private final CharSequence original; // Text of the opened file, never modified
+    private final char[] originalArray; // Backing array of original when it has one, allows zero-copy reads
+    private final int originalArrayOffset;
+    private char[] add = new char[1024]; // Every inserted string is appended here, only compact drops text from it
+    private int addLength;
+    private final List<Piece> pieces = new ArrayList<>(); // Ordered pieces that make up the document
+    private int length; // Total length including the implied trailing newline required by AbstractDocument
+    private volatile int[] pieceStarts; // Document offset of every piece, null once the pieces have changed since it was filled
+    private final List<int[]> detached = new ArrayList<>(); // {start, end, add buffer offset} of original ranges copied by detachOriginal
+    private int generation; // Counts the compactions, edits made before the last one point at add buffer text that is gone
+
+    // Positions are tracked the same way GapContent does it: marks live in a coordinate space containing a virtual gap
+    // that is moved to each edit, so only the marks between two consecutive edit locations have to be touched
+    private final List<Mark> marks = new ArrayList<>(); // Sorted by index
+    private final ReferenceQueue<StickyPosition> queue = new ReferenceQueue<>(); // Marks whose positions were collected
+    private List<Mark> batch; // Marks created since startPositions, merged into marks by endPositions
+    private long gapStart;
+    private long gapSize = Long.MAX_VALUE / 4;
+
+    public PieceTableContent() {
+        this("");
+    }
+
+    public PieceTableContent(CharSequence original) {
+        this.original = original;
+        if (original instanceof CharBuffer && ((CharBuffer) original).hasArray()) {
+            CharBuffer buffer = (CharBuffer) original;
+            originalArray = buffer.array();
+            originalArrayOffset = buffer.arrayOffset() + buffer.position();
+        } else {
+            originalArray = null;
+            originalArrayOffset = 0;
+        }
+        if (original.length() > 0) {
+            pieces.add(new Piece(true, 0, original.length()));
+        }
+        pieces.add(new Piece(false, append("\n"), 1)); // AbstractDocument expects content to end with a newline
+        length = original.length() + 1;
+    }
+
+    // Told about each piece of the document in order, start being an offset into the original text or the add buffer
+    @FunctionalInterface
+    public interface PieceVisitor {
+        void visit(boolean original, int start, int length);
+    }
+
+    public CharSequence getOriginal() {
+        return original;
+    }
+
+    // Calls visitor for every piece in document order, leaving out the implied trailing newline
+    public void visitPieces(PieceVisitor visitor) {
+        for (int i = 0; i < pieces.size() - 1; i++) { // The last piece always holds just the trailing newline
+            Piece piece = pieces.get(i);
+            visitor.visit(piece.original, piece.start, piece.length);
+        }
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public UndoableEdit insertString(int where, String str) throws BadLocationException {
+        if (where < 0 || where >= length) {
+            throw new BadLocationException("Invalid insert", where);
+        }
+        int len = str.length();
+        if (len == 0) {
+            return null;
+        }
+        int addStart = append(str);
+        int[] starts = pieceStarts();
+        int index = findPiece(starts, where);
+        int pieceOffset = where - starts[index];
+        pieceStarts = null;
+        if (pieceOffset == 0 && index > 0) {
+            Piece previous = pieces.get(index - 1);
+            if (!previous.original && previous.start + previous.length == addStart) { // Typing sequentially extends the previous piece
+                pieces.set(index - 1, new Piece(false, previous.start, previous.length + len));
+                insertMarks(where, len);
+                length += len;
+                return new PieceEdit(where, len, true);
+            }
+        }
+        Piece inserted = new Piece(false, addStart, len);
+        if (pieceOffset == 0) {
+            pieces.add(index, inserted);
+        } else {
+            Piece piece = pieces.get(index);
+            pieces.set(index, new Piece(piece.original, piece.start, pieceOffset));
+            pieces.add(index + 1, inserted);
+            pieces.add(index + 2, new Piece(piece.original, piece.start + pieceOffset, piece.length - pieceOffset));
+        }
+        insertMarks(where, len);
+        length += len;
+        return new PieceEdit(where, len, true);
+    }
+
+    @Override
+    public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+        if (where < 0 || where + nitems >= length) { // The implied trailing newline can never be removed
+            throw new BadLocationException("Invalid remove", where + nitems);
+        }
+        if (nitems == 0) {
+            return null;
+        }
+        PieceEdit edit = new PieceEdit(where, nitems, false);
+        edit.take();
+        return edit;
+    }
+
+    // Inserts at where the text that removal took out of the document, with every range of replacements, all of which
+    // lie in that text, replaced by its new text. The text around the ranges is put back as the pieces it was made of
+    // and the new texts go into the add buffer together, so a million replacements cost a pass over the pieces
+    public UndoableEdit insertReplaced(int where, UndoableEdit removal, Replacements replacements) {
+        List<Piece> removed = ((PieceEdit) removal).taken;
+        int textsStart = append(replacements.texts.toString());
+        List<Piece> inserted = new ArrayList<>();
+        int[] cursor = new int[2]; // Index of the removed piece at position, and how far into it position is
+        int position = ((PieceEdit) removal).where; // Offset in the document before the removal
+        int textStart = 0;
+        for (int i = 0; i < replacements.size; i++) {
+            copyPieces(removed, cursor, replacements.starts[i] - position, inserted);
+            copyPieces(removed, cursor, replacements.ends[i] - replacements.starts[i], null);
+            int textLength = replacements.textEnds[i] - textStart;
+            Piece last = inserted.isEmpty() ? null : inserted.get(inserted.size() - 1);
+            if (textLength == 0) {
+                // Nothing to add
+            } else if (last != null && !last.original && last.start + last.length == textsStart + textStart) { // Replacements next to each other share a piece
+                inserted.set(inserted.size() - 1, new Piece(false, last.start, last.length + textLength));
+            } else {
+                inserted.add(new Piece(false, textsStart + textStart, textLength));
+            }
+            textStart = replacements.textEnds[i];
+            position = replacements.ends[i];
+        }
+        copyPieces(removed, cursor, Integer.MAX_VALUE, inserted);
+        int len = 0;
+        for (Piece piece : inserted) {
+            len += piece.length;
+        }
+        if (len == 0) {
+            return null;
+        }
+        splice(where, inserted);
+        insertMarks(where, len);
+        length += len;
+        return new PieceEdit(where, len, true);
+    }
+
+    // Moves cursor count chars further through pieces, adding what it passes over to out unless out is null
+    private static void copyPieces(List<Piece> pieces, int[] cursor, int count, List<Piece> out) {
+        while (count > 0 && cursor[0] < pieces.size()) {
+            Piece piece = pieces.get(cursor[0]);
+            int taken = Math.min(count, piece.length - cursor[1]);
+            if (out != null) {
+                out.add(new Piece(piece.original, piece.start + cursor[1], taken));
+            }
+            count -= taken;
+            cursor[1] += taken;
+            if (cursor[1] == piece.length) {
+                cursor[0]++;
+                cursor[1] = 0;
+            }
+        }
+    }
+
+    // Copies the original text in [start, end) into the add buffer before the file behind it is rewritten in place.
+    // The document no longer shows that part of the original, but undo may bring back pieces pointing into it
+    public void detachOriginal(int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        char[] chars = new char[end - start];
+        copyChars(new Piece(true, start, end - start), 0, chars.length, chars, 0);
+        detached.add(new int[]{start, end, append(new String(chars))});
+    }
+
+    // Copies the text the pieces show out of the add buffer into a new one, dropping whatever only removed text pointed
+    // at. Does nothing until less than half of the add buffer is shown, so it may be called after every edit. Edits made
+    // before it compacts can no longer be undone or redone. Readers must be kept out, as for any edit
+    public void compact() {
+        if (addLength <= 2L * length) {
+            return;
+        }
+        int shown = 0;
+        for (Piece piece : pieces) {
+            if (!piece.original) {
+                shown += piece.length;
+            }
+        }
+        char[] compacted = new char[Math.max(1024, 2 * shown)]; // Room to append as much again before it grows
+        int addStart = 0;
+        for (int i = 0; i < pieces.size(); i++) {
+            Piece piece = pieces.get(i);
+            if (!piece.original) {
+                System.arraycopy(add, piece.start, compacted, addStart, piece.length);
+                pieces.set(i, new Piece(false, addStart, piece.length));
+                addStart += piece.length;
+            }
+        }
+        add = compacted; // Segments handed out earlier keep the old buffer, which still holds their text
+        addLength = addStart;
+        detached.clear(); // Only undo could bring back the original text they stand in for
+        generation++;
+    }
+
+    @Override
+    public String getString(int where, int len) throws BadLocationException {
+        Segment segment = new Segment();
+        getChars(where, len, segment);
+        return new String(segment.array, segment.offset, segment.count);
+    }
+
+    @Override
+    public void getChars(int where, int len, Segment txt) throws BadLocationException {
+        if (where < 0 || len < 0 || where + len > length) {
+            throw new BadLocationException("Invalid location", where + len);
+        }
+        if (len == 0) {
+            txt.array = new char[0];
+            txt.offset = 0;
+            txt.count = 0;
+            return;
+        }
+        int[] starts = pieceStarts();
+        int index = findPiece(starts, where);
+        Piece piece = pieces.get(index);
+        int pieceOffset = where - starts[index];
+        int available = piece.length - pieceOffset;
+        if (len <= available || txt.isPartialReturn()) { // Whatever fits in a single piece is handed out without copying when possible
+            int count = Math.min(len, available);
+            if (!piece.original) {
+                txt.array = add;
+                txt.offset = piece.start + pieceOffset;
+                txt.count = count;
+                return;
+            } else if (originalArray != null) {
+                txt.array = originalArray;
+                txt.offset = originalArrayOffset + piece.start + pieceOffset;
+                txt.count = count;
+                return;
+            } else if (original instanceof MappedText) { // Hand out the decoded page, which may end before the piece does
+                ((MappedText) original).getSegment(piece.start + pieceOffset, count, txt);
+                if (txt.count == len || txt.isPartialReturn()) {
+                    return;
+                }
+            }
+            len = count;
+        }
+        char[] chars = new char[len]; // Text spans several pieces, or lives in a sequence without a backing array
+        int copied = 0;
+        while (copied < len) {
+            piece = pieces.get(index++);
+            int count = Math.min(len - copied, piece.length - pieceOffset);
+            copyChars(piece, pieceOffset, count, chars, copied);
+            copied += count;
+            pieceOffset = 0;
+        }
+        txt.array = chars;
+        txt.offset = 0;
+        txt.count = len;
+    }
+
+    @Override
+    public Position createPosition(int offset) throws BadLocationException {
+        if (offset < 0 || offset > length) {
+            throw new BadLocationException("Invalid position", offset);
+        }
+        long index = offset < gapStart ? offset : offset + gapSize;
+        if (batch != null && !batch.isEmpty() && batch.get(batch.size() - 1).index == index) { // The end of one line is the start of the next
+            StickyPosition position = batch.get(batch.size() - 1).get();
+            if (position != null) {
+                return position;
+            }
+        }
+        if (batch == null) {
+            purgeMarks();
+        }
+        int i = findMark(index);
+        for (int j = i; j < marks.size() && marks.get(j).index == index; j++) {
+            Mark mark = marks.get(j);
+            StickyPosition position = mark.get();
+            if (position != null && mark.takenBy == 0) { // Undo would move a mark an edit took out back where it was
+                return position;
+            }
+        }
+        StickyPosition position = new StickyPosition();
+        Mark mark = new Mark(position, queue, index);
+        position.mark = mark;
+        if (batch != null) {
+            batch.add(mark);
+        } else {
+            marks.add(i, mark);
+        }
+        return position;
+    }
+
+    // Until endPositions, createPosition must be called in increasing offset order with no edit in between. The marks it
+    // creates are then merged in at once instead of each being inserted into the middle of the list, which is what
+    // keeps rebuilding a million line elements after a replace-all linear
+    public void startPositions() {
+        batch = new ArrayList<>();
+    }
+
+    public void endPositions() {
+        List<Mark> merged = new ArrayList<>(marks.size() + batch.size());
+        int i = 0;
+        for (Mark mark : batch) {
+            while (i < marks.size() && marks.get(i).index <= mark.index) {
+                merged.add(marks.get(i++));
+            }
+            merged.add(mark);
+        }
+        merged.addAll(marks.subList(i, marks.size()));
+        marks.clear();
+        marks.addAll(merged);
+        batch = null;
+        purgeMarks();
+    }
+
+    // Document offset of every piece. Readers holding only the document's read lock may call this at the same time, so
+    // the array is filled before it is published and a reader that finds none builds its own
+    private int[] pieceStarts() {
+        int[] starts = pieceStarts;
+        if (starts == null) {
+            starts = new int[pieces.size()];
+            int start = 0;
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = start;
+                start += pieces.get(i).length;
+            }
+            pieceStarts = starts;
+        }
+        return starts;
+    }
+
+    // Returns the index of the piece containing offset, whose own offset is starts at that index
+    private int findPiece(int[] starts, int offset) {
+        if (offset < 0 || offset >= length) {
+            throw new IllegalStateException("Offset " + offset + " outside of content");
+        }
+        int low = 0; // Binary search for the last piece starting at or before offset
+        int high = starts.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (starts[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private void copyChars(Piece piece, int pieceOffset, int count, char[] dst, int dstBegin) {
+        int start = piece.start + pieceOffset;
+        if (!piece.original) {
+            System.arraycopy(add, start, dst, dstBegin, count);
+        } else if (originalArray != null) {
+            System.arraycopy(originalArray, originalArrayOffset + start, dst, dstBegin, count);
+        } else if (original instanceof MappedText) {
+            ((MappedText) original).getChars(start, start + count, dst, dstBegin);
+        } else if (original instanceof String) {
+            ((String) original).getChars(start, start + count, dst, dstBegin);
+        } else {
+            for (int i = 0; i < count; i++) {
+                dst[dstBegin + i] = original.charAt(start + i);
+            }
+        }
+    }
+
+    // Takes [where, where + nitems) out of the piece list and returns the pieces that held it
+    private List<Piece> cut(int where, int nitems) {
+        int[] starts = pieceStarts();
+        int index = findPiece(starts, where);
+        int pieceOffset = where - starts[index];
+        pieceStarts = null;
+        if (pieceOffset > 0) { // Split off the part of the first piece that stays
+            Piece piece = pieces.get(index);
+            pieces.set(index, new Piece(piece.original, piece.start, pieceOffset));
+            pieces.add(index + 1, new Piece(piece.original, piece.start + pieceOffset, piece.length - pieceOffset));
+            index++;
+        }
+        int end = index;
+        int remaining = nitems;
+        while (remaining > 0) {
+            Piece piece = pieces.get(end);
+            if (piece.length <= remaining) {
+                remaining -= piece.length;
+                end++;
+            } else { // Split off the part of the last piece that stays
+                pieces.set(end, new Piece(piece.original, piece.start, remaining));
+                pieces.add(end + 1, new Piece(piece.original, piece.start + remaining, piece.length - remaining));
+                remaining = 0;
+                end++;
+            }
+        }
+        List<Piece> range = pieces.subList(index, end);
+        List<Piece> removed = new ArrayList<>(range);
+        range.clear();
+        return removed;
+    }
+
+    // Puts pieces back at where, reading any detached original ranges from their copies in the add buffer
+    private void splice(int where, List<Piece> inserted) {
+        List<Piece> translated = detached.isEmpty() ? inserted : new ArrayList<>();
+        if (!detached.isEmpty()) {
+            for (Piece piece : inserted) {
+                translate(piece, translated);
+            }
+        }
+        int[] starts = pieceStarts();
+        int index = findPiece(starts, where);
+        int pieceOffset = where - starts[index];
+        pieceStarts = null;
+        if (pieceOffset > 0) {
+            Piece piece = pieces.get(index);
+            pieces.set(index, new Piece(piece.original, piece.start, pieceOffset));
+            pieces.add(index + 1, new Piece(piece.original, piece.start + pieceOffset, piece.length - pieceOffset));
+            index++;
+        }
+        pieces.addAll(index, translated);
+    }
+
+    // Adds piece to out, split so the parts lying in detached ranges of the original point at their copies instead
+    private void translate(Piece piece, List<Piece> out) {
+        if (piece.original) {
+            int start = piece.start;
+            int end = piece.start + piece.length;
+            for (int[] range : detached) {
+                if (range[0] < end && range[1] > start) {
+                    int overlapStart = Math.max(start, range[0]);
+                    int overlapEnd = Math.min(end, range[1]);
+                    if (start < overlapStart) {
+                        translate(new Piece(true, start, overlapStart - start), out);
+                    }
+                    out.add(new Piece(false, range[2] + overlapStart - range[0], overlapEnd - overlapStart));
+                    if (overlapEnd < end) {
+                        translate(new Piece(true, overlapEnd, end - overlapEnd), out);
+                    }
+                    return;
+                }
+            }
+        }
+        out.add(piece);
+    }
+
+    // Appends str to the add buffer, growing it geometrically, and returns where it starts
+    private int append(String str) {
+        int start = addLength;
+        if (addLength + str.length() > add.length) {
+            char[] grown = new char[Math.max(add.length * 2, addLength + str.length())];
+            System.arraycopy(add, 0, grown, 0, addLength);
+            add = grown;
+        }
+        str.getChars(0, str.length(), add, addLength);
+        addLength += str.length();
+        return start;
+    }
+
+    // * MARKS - A mark's offset is its index when it lies before the virtual gap, and its index minus the gap size otherwise.
+    // Marks sitting exactly at the gap start are always kept on the far side of the gap, so they move with insertions there.
+    private void moveGap(long newGapStart) {
+        if (newGapStart < gapStart) { // Marks between the new and old gap start move to the far side of the gap
+            for (int i = findMark(newGapStart); i < marks.size() && marks.get(i).index < gapStart; i++) {
+                marks.get(i).index += gapSize;
+            }
+        } else if (newGapStart > gapStart) { // Marks between the old and new gap end move to the near side of the gap
+            for (int i = findMark(gapStart + gapSize); i < marks.size() && marks.get(i).index < newGapStart + gapSize; i++) {
+                marks.get(i).index -= gapSize;
+            }
+        }
+        gapStart = newGapStart;
+    }
+
+    private void insertMarks(int where, int len) {
+        purgeMarks();
+        moveGap(where);
+        if (where == 0) { // Marks at the start of the document stay there, matching GapContent
+            long gapEnd = gapStart + gapSize;
+            for (int i = findMark(gapEnd); i < marks.size() && marks.get(i).index == gapEnd; i++) {
+                marks.get(i).index = 0;
+            }
+        }
+        gapStart += len;
+        gapSize -= len;
+    }
+
+    private void removeMarks(int where, int nitems) {
+        purgeMarks();
+        moveGap(where);
+        long gapEnd = gapStart + gapSize;
+        for (int i = findMark(gapEnd); i < marks.size() && marks.get(i).index <= gapEnd + nitems; i++) { // Marks inside the removed range collapse onto where
+            marks.get(i).index = gapEnd + nitems;
+        }
+        gapSize += nitems;
+    }
+
+    // Marks at offsets in [where, where + nitems], recorded before that range is removed so undo can put them back
+    private Mark[] marksIn(int where, int nitems) {
+        purgeMarks();
+        moveGap(where); // Every mark from where on is now on the far side of the gap
+        int first = findMark(where + gapSize);
+        int last = first;
+        while (last < marks.size() && marks.get(last).index <= where + nitems + gapSize) {
+            last++;
+        }
+        Mark[] recorded = marks.subList(first, last).toArray(new Mark[0]);
+        for (Mark mark : recorded) {
+            mark.takenBy++;
+        }
+        return recorded;
+    }
+
+    // Moves marks recorded by marksIn back to offsets, right after their range was inserted again
+    private void restoreMarks(Mark[] recorded, int[] offsets) {
+        for (Mark mark : recorded) {
+            mark.takenBy--;
+        }
+        long collapsed = -1; // Removing the range left every recorded mark at one index, which inserting it has moved along
+        for (Mark mark : recorded) {
+            if (mark.get() != null) {
+                collapsed = mark.index;
+                break;
+            }
+        }
+        if (collapsed < 0) {
+            return;
+        }
+        int first = findMark(collapsed);
+        int last = first;
+        while (last < marks.size() && marks.get(last).index == collapsed) {
+            last++;
+        }
+        for (int i = 0; i < recorded.length; i++) {
+            recorded[i].index = offsets[i] < gapStart ? offsets[i] : offsets[i] + gapSize;
+        }
+        marks.subList(first, last).sort((a, b) -> Long.compare(a.index, b.index)); // Only the collapsed marks are out of order
+    }
+
+    // Binary search for the first mark whose index is at least index
+    private int findMark(long index) {
+        int low = 0;
+        int high = marks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (marks.get(mid).index < index) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void purgeMarks() {
+        if (queue.poll() != null) {
+            while (queue.poll() != null) {
+                // Drain the queue, the sweep below removes every collected mark at once
+            }
+            marks.removeIf(mark -> mark.get() == null);
+        }
+    }
+
+    // Ranges of the document in increasing order, each with the text that replaces it, for insertReplaced
+    public static final class Replacements {
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private int[] textEnds = new int[16]; // End of each range's new text in texts
+        private int[] removedEnds = new int[16]; // Chars in this range and the ones before it
+        private int size;
+        private final StringBuilder texts = new StringBuilder(); // New text of every range, one after the other
+
+        // Adds [start, end) to be replaced by text, after every range added so far
+        public void add(int start, int end, CharSequence text) {
+            if (size > 0 && start < ends[size - 1]) {
+                throw new IllegalArgumentException("Range " + start + "-" + end + " overlaps " + starts[size - 1] + "-" + ends[size - 1]);
+            }
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                textEnds = Arrays.copyOf(textEnds, size * 2);
+                removedEnds = Arrays.copyOf(removedEnds, size * 2);
+            }
+            texts.append(text);
+            starts[size] = start;
+            ends[size] = end;
+            textEnds[size] = texts.length();
+            removedEnds[size] = (size == 0 ? 0 : removedEnds[size - 1]) + end - start;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int start(int i) {
+            return starts[i];
+        }
+
+        public int end(int i) {
+            return ends[i];
+        }
+
+        // New text of range i
+        public String text(int i) {
+            return texts.substring(i == 0 ? 0 : textEnds[i - 1], textEnds[i]);
+        }
+
+        public int textLength(int i) {
+            return textEnds[i] - (i == 0 ? 0 : textEnds[i - 1]);
+        }
+
+        // Rough memory held by the ranges and their new text
+        public long memoryBytes() {
+            return 16L * starts.length + 2L * texts.capacity();
+        }
+
+        // How much longer the document gets once the ranges are replaced
+        public int lengthChange() {
+            return size == 0 ? 0 : textEnds[size - 1] - removedEnds[size - 1];
+        }
+
+        // Where offset ends up once the ranges are replaced, offsets inside a range going to the end of its new text
+        public int map(int offset) {
+            int low = 0; // Binary search for the number of ranges starting before offset
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] < offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (low == 0) {
+                return offset;
+            }
+            int last = low - 1;
+            int shift = textEnds[last] - removedEnds[last]; // How far the text after the last range moves
+            return Math.max(offset, ends[last]) + shift;
+        }
+    }
+
+    private static final class Piece {
+        final boolean original; // Whether the piece points into the original buffer or the add buffer
+        final int start;
+        final int length;
+
+        Piece(boolean original, int start, int length) {
+            this.original = original;
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    // Undoable insertion or removal. Holds the pieces of the text rather than the text itself, so undoing a large edit
+    // costs as much as the number of pieces involved, not the number of characters
+    private final class PieceEdit extends AbstractUndoableEdit {
+        private final int where;
+        private final int length;
+        private final boolean insertion;
+        private List<Piece> taken; // Pieces of the text while it is out of the document
+        private Mark[] takenMarks = new Mark[0]; // Marks that were inside the text when it was taken out
+        private int[] takenOffsets = new int[0];
+        private final int generation = PieceTableContent.this.generation;
+
+        PieceEdit(int where, int length, boolean insertion) {
+            this.where = where;
+            this.length = length;
+            this.insertion = insertion;
+        }
+
+        @Override
+        public boolean canUndo() {
+            return super.canUndo() && generation == PieceTableContent.this.generation;
+        }
+
+        @Override
+        public boolean canRedo() {
+            return super.canRedo() && generation == PieceTableContent.this.generation;
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            if (insertion) {
+                take();
+            } else {
+                put();
+            }
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            if (insertion) {
+                put();
+            } else {
+                take();
+            }
+        }
+
+        void take() {
+            takenMarks = marksIn(where, length);
+            takenOffsets = new int[takenMarks.length];
+            for (int i = 0; i < takenMarks.length; i++) {
+                takenOffsets[i] = (int) (takenMarks[i].index - gapSize);
+            }
+            taken = cut(where, length);
+            removeMarks(where, length);
+            PieceTableContent.this.length -= length;
+        }
+
+        void put() {
+            splice(where, taken);
+            insertMarks(where, length);
+            restoreMarks(takenMarks, takenOffsets);
+            PieceTableContent.this.length += length;
+            taken = null;
+            takenMarks = new Mark[0];
+            takenOffsets = new int[0];
+        }
+    }
+
+    private static final class Mark extends WeakReference<StickyPosition> {
+        long index;
+        int takenBy; // Edits holding this mark to put back where it was, createPosition hands out other marks meanwhile
+
+        Mark(StickyPosition position, ReferenceQueue<StickyPosition> queue, long index) {
+            super(position, queue);
+            this.index = index;
+        }
+    }
+
+    private final class StickyPosition implements Position {
+        Mark mark;
+
+        @Override
+        public int getOffset() {
+            long index = mark.index;
+            return (int) (index < gapStart ? index : index - gapSize);
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toString(getOffset());
+        }
+    }
+}
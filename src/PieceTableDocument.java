@@ -0,0 +1,279 @@
+/**
+ * PieceTableDocument.java
+ *
+ * Plain text document whose content is a PieceTableContent, so the text of an opened file is never copied when it is
+ * edited. The line map is built straight from the original text instead of going through insertString, which would
+ * require the whole file as one String. A replace-all goes in as one edit: the span from the first replaced range to
+ * the last is removed and put back rewritten, with one remove and one insert event and a single undo entry.
+ */
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.UndoableEditEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.Segment;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.CompoundEdit;
+import javax.swing.undo.UndoableEdit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+public class PieceTableDocument extends PlainDocument {
+    private PieceTableContent.Replacements replacing; // Set while the events of a replace, or of its undo or redo, are fired
+    private boolean replacingUndone;
+    private int replaceEventsLeft; // Events of that replace still to be fired, including the one being fired
+
+    // Told about each range a replace changed, at its offset in the document as it is once the events are fired
+    @FunctionalInterface
+    public interface ReplacedRangeVisitor {
+        void visit(int offset, int removedLength, int insertedLength);
+    }
+
+    public PieceTableDocument() {
+        this("");
+    }
+
+    public PieceTableDocument(CharSequence original) {
+        this(original, chars -> { });
+    }
+
+    // progress is told how many chars of original have been scanned for lines and may throw to abandon the document
+    public PieceTableDocument(CharSequence original, IntConsumer progress) {
+        super(new PieceTableContent(original));
+        if (original.length() > 0) {
+            buildLines(progress);
+        }
+    }
+
+    public PieceTableContent getPieceTable() {
+        return (PieceTableContent) getContent();
+    }
+
+    // Replaces every range of replacements with its new text as one edit. Must be called on the EDT
+    public void replace(PieceTableContent.Replacements replacements) throws BadLocationException {
+        if (replacements.size() == 0) {
+            return;
+        }
+        int where = replacements.start(0);
+        int removedLength = replacements.end(replacements.size() - 1) - where;
+        if (where < 0 || where + removedLength >= getContent().length()) {
+            throw new BadLocationException("Invalid replace", where + removedLength);
+        }
+        Replace edit = new Replace(replacements);
+        writeLock();
+        try {
+            replacing = replacements;
+            replacingUndone = false;
+            int insertedLength = removedLength + replacements.lengthChange();
+            replaceEventsLeft = (removedLength > 0 ? 1 : 0) + (insertedLength > 0 ? 1 : 0);
+            UndoableEdit removed = null;
+            if (removedLength > 0) { // Otherwise there is a single empty range, and its text is simply inserted
+                DefaultDocumentEvent removal = new DefaultDocumentEvent(where, removedLength, DocumentEvent.EventType.REMOVE);
+                removeUpdate(removal); // Joins the lines the span touched into one
+                removed = getContent().remove(where, removedLength);
+                removal.addEdit(removed);
+                postRemoveUpdate(removal);
+                removal.end();
+                fireRemoveUpdate(removal);
+                edit.addEdit(removal);
+            }
+            UndoableEdit inserted = removed != null
+                    ? getPieceTable().insertReplaced(where, removed, replacements)
+                    : getContent().insertString(where, replacements.text(0));
+            if (inserted != null) {
+                DefaultDocumentEvent insertion = new DefaultDocumentEvent(where, insertedLength, DocumentEvent.EventType.INSERT);
+                insertion.addEdit(inserted);
+                insertLines(insertion);
+                insertion.end();
+                fireInsertUpdate(insertion);
+                edit.addEdit(insertion);
+            }
+            edit.end();
+            if (removed != null || inserted != null) {
+                fireUndoableEditUpdate(new UndoableEditEvent(this, edit));
+            }
+        } finally {
+            replacing = null;
+            writeUnlock();
+        }
+    }
+
+    // Frees the text the add buffer of the piece table holds only for removed text, see PieceTableContent.compact. The
+    // edits made before can no longer be undone. Must be called on the EDT
+    public void compact() {
+        writeLock();
+        try {
+            getPieceTable().compact();
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    // Whether the events being fired come from replace, or from undoing or redoing one, see visitReplaced
+    public boolean isReplacing() {
+        return replacing != null;
+    }
+
+    // Whether the event being fired is the last of a replace, after which the document holds the replaced text
+    public boolean isReplaceComplete() {
+        return replacing != null && replaceEventsLeft == 1;
+    }
+
+    @Override
+    protected void fireInsertUpdate(DocumentEvent e) {
+        super.fireInsertUpdate(e);
+        replaceEventsLeft--;
+    }
+
+    @Override
+    protected void fireRemoveUpdate(DocumentEvent e) {
+        super.fireRemoveUpdate(e);
+        replaceEventsLeft--;
+    }
+
+    // Calls visitor for every range the replace being fired changed, in document order
+    public void visitReplaced(ReplacedRangeVisitor visitor) {
+        int shift = 0; // How far the ranges visited so far moved the ones after them
+        for (int i = 0; i < replacing.size(); i++) {
+            int oldLength = replacing.end(i) - replacing.start(i);
+            int newLength = replacing.textLength(i);
+            if (replacingUndone) {
+                visitor.visit(replacing.start(i), newLength, oldLength);
+            } else {
+                visitor.visit(replacing.start(i) + shift, oldLength, newLength);
+                shift += newLength - oldLength;
+            }
+        }
+    }
+
+    // Splits the text of an insert event into lines the way PlainDocument.insertUpdate does, reading it a piece at a
+    // time where PlainDocument would copy all of it into one array
+    private void insertLines(DefaultDocumentEvent insertion) {
+        BranchElement root = (BranchElement) getDefaultRootElement();
+        int offset = insertion.getOffset();
+        int length = insertion.getLength();
+        if (offset > 0) { // The line before the text gets its end back from the inserted text
+            offset -= 1;
+            length += 1;
+        }
+        int index = root.getElementIndex(offset);
+        Element line = root.getElement(index);
+        int lineEnd = line.getEndOffset();
+        int lineStart = line.getStartOffset();
+        List<Element> removed = new ArrayList<>();
+        List<Element> added = new ArrayList<>();
+        Segment segment = new Segment();
+        segment.setPartialReturn(true);
+        getPieceTable().startPositions(); // The new lines are created in order
+        try {
+            int position = offset;
+            while (position < offset + length) {
+                getContent().getChars(position, offset + length - position, segment);
+                for (int i = 0; i < segment.count; i++) {
+                    if (segment.array[segment.offset + i] == '\n') {
+                        int breakOffset = position + i + 1;
+                        added.add(createLeafElement(root, null, lineStart, breakOffset));
+                        lineStart = breakOffset;
+                    }
+                }
+                position += segment.count;
+            }
+            if (added.isEmpty()) {
+                return;
+            }
+            removed.add(line);
+            if (offset + length == lineEnd && lineStart != lineEnd && index + 1 < root.getElementCount()) {
+                Element next = root.getElement(index + 1);
+                removed.add(next);
+                lineEnd = next.getEndOffset();
+            }
+            if (lineStart < lineEnd) {
+                added.add(createLeafElement(root, null, lineStart, lineEnd));
+            }
+        } catch (BadLocationException badLocation) {
+            throw new IllegalStateException(badLocation);
+        } finally {
+            getPieceTable().endPositions();
+        }
+        Element[] removedLines = removed.toArray(new Element[0]);
+        Element[] addedLines = added.toArray(new Element[0]);
+        insertion.addEdit(new ElementEdit(root, index, removedLines, addedLines));
+        root.replace(index, removedLines.length, addedLines);
+    }
+
+    // Replaces the single empty line created by PlainDocument with one line element per line of the original text
+    private void buildLines(IntConsumer progress) {
+        BranchElement root = (BranchElement) getDefaultRootElement();
+        List<Element> lines = new ArrayList<>();
+        Segment segment = new Segment();
+        segment.setPartialReturn(true);
+        int length = getContent().length();
+        int lineStart = 0;
+        writeLock();
+        try {
+            int offset = 0;
+            while (offset < length) {
+                getContent().getChars(offset, Math.min(length - offset, 65536), segment); // Scan in chunks so no full copy is made
+                for (int i = 0; i < segment.count; i++) {
+                    if (segment.array[segment.offset + i] == '\n') {
+                        int lineEnd = offset + i + 1;
+                        lines.add(createLeafElement(root, null, lineStart, lineEnd));
+                        lineStart = lineEnd;
+                    }
+                }
+                offset += segment.count;
+                progress.accept(offset);
+            }
+            root.replace(0, root.getElementCount(), lines.toArray(new Element[0]));
+        } catch (BadLocationException badLocation) {
+            throw new IllegalStateException(badLocation);
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    // Undo entry of a replace. Its events are fired with the replacements at hand, so listeners can tell them apart
+    final class Replace extends CompoundEdit {
+        private final PieceTableContent.Replacements replacements;
+
+        Replace(PieceTableContent.Replacements replacements) {
+            this.replacements = replacements;
+        }
+
+        PieceTableContent.Replacements getReplacements() {
+            return replacements;
+        }
+
+        // The remove and insert events the replace fired
+        List<UndoableEdit> getEvents() {
+            return edits;
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            replacing = replacements;
+            replacingUndone = true;
+            replaceEventsLeft = edits.size(); // One event for each of its document events
+            try {
+                super.undo();
+            } finally {
+                replacing = null;
+            }
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            replacing = replacements;
+            replacingUndone = false;
+            replaceEventsLeft = edits.size();
+            try {
+                super.redo();
+            } finally {
+                replacing = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * ReplaceAll.java
+ *
+ * Works out the new text of every match of the search in a document, for the document to swap in as one edit. The
+ * matches are found with the same searchers as the search toolbar, in parallel when no match can span lines. One pass
+ * over them in document order then builds every new text into a single buffer. A regex replacement may refer to groups
+ * as $1 or ${name}, and such a template is parsed once, not once per match. Each match is matched again where it
+ * starts to fill in its groups, and only when the template uses them. The document is only read meanwhile; the caller
+ * keeps it from being edited until the worker is done and then hands the result to PieceTableDocument.replace.
+ */
+
+import javax.swing.*;
+import javax.swing.text.Document;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ReplaceAll extends SwingWorker<PieceTableContent.Replacements, Void> {
+    private final Document document;
+    private final Pattern pattern; // Null for a plain-text search
+    private final ParallelSearch.RangeSearcher searcher;
+    private final boolean lineBounded;
+    private final Template template;
+
+    // Replaces the matches of query with replacement, which is taken literally unless regex is set
+    public ReplaceAll(Document document, String query, boolean regex, boolean ignoreCase, String replacement) {
+        this.document = document;
+        if (regex) {
+            pattern = PatternCache.get(query, true, ignoreCase, false);
+            searcher = ParallelSearch.regex(pattern, this::isCancelled); // Stopped by cancelling instead of timing out
+            lineBounded = ParallelSearch.isLineBounded(pattern);
+        } else {
+            pattern = null;
+            LiteralMatcher literal = new LiteralMatcher(query, ignoreCase);
+            searcher = literal;
+            lineBounded = literal.isLineBounded();
+        }
+        template = new Template(replacement, pattern);
+    }
+
+    // The match of the search at [start, end) of document with its new text, for replacing the selected match on the
+    // calling thread. Nothing is replaced if the text there is no longer that match
+    public static PieceTableContent.Replacements replaceOne(Document document, int start, int end, String query, boolean regex, boolean ignoreCase, String replacement) {
+        Pattern pattern = regex ? PatternCache.get(query, true, ignoreCase, false) : null;
+        Template template = new Template(replacement, pattern);
+        PieceTableContent.Replacements replacements = new PieceTableContent.Replacements();
+        DocumentText text = new DocumentText(document);
+        Matcher matcher = null;
+        if (regex) {
+            matcher = matcherAt(pattern, text, start);
+            if (matcher == null || matcher.end() != end) {
+                return replacements;
+            }
+        } else {
+            MatchIndex.Builder matches = new MatchIndex.Builder();
+            new LiteralMatcher(query, ignoreCase).search(text, start, Math.min(start + 1, text.length()), matches);
+            MatchIndex match = matches.build();
+            if (match.isEmpty() || match.start(0) != start || match.end(0) != end) {
+                return replacements;
+            }
+        }
+        replacements.add(start, end, template.expand(matcher));
+        return replacements;
+    }
+
+    @Override
+    protected PieceTableContent.Replacements doInBackground() {
+        int length = document.getLength();
+        MatchIndex matches = ParallelSearch.search(() -> new DocumentText(document, 0, length), searcher, lineBounded, this::isCancelled);
+        PieceTableContent.Replacements replacements = new PieceTableContent.Replacements();
+        DocumentText text = new DocumentText(document, 0, length);
+        String constant = template.hasGroups() ? null : template.expand(null); // The same for every match
+        for (int i = 0; i < matches.size(); i++) {
+            if ((i & 0xFFF) == 0) {
+                if (isCancelled()) {
+                    throw new CancellationException();
+                }
+                setProgress((int) (100L * i / matches.size()));
+            }
+            int start = matches.start(i);
+            replacements.add(start, matches.end(i), constant != null ? constant : template.expand(matcherAt(pattern, text, start)));
+        }
+        return replacements;
+    }
+
+    // Matcher holding the match of pattern that starts at start, as a search over the whole text finds it there, or
+    // null if there is none
+    private static Matcher matcherAt(Pattern pattern, CharSequence text, int start) {
+        Matcher matcher = pattern.matcher(text);
+        matcher.useTransparentBounds(true);
+        matcher.useAnchoringBounds(false);
+        matcher.region(start, text.length());
+        return matcher.lookingAt() ? matcher : null;
+    }
+
+    // Replacement text split into literal parts and group references, following the syntax of
+    // Matcher.appendReplacement: $n or ${name} refers to a group and a backslash takes the next char literally
+    static final class Template {
+        private final List<String> literals = new ArrayList<>(); // Text before each group reference, and after the last one
+        private final List<Object> groups = new ArrayList<>(); // Integer number or String name of each reference
+
+        // A null pattern takes replacement literally. Throws IllegalArgumentException for a malformed reference
+        Template(String replacement, Pattern pattern) {
+            if (pattern == null) {
+                literals.add(replacement);
+                return;
+            }
+            int groupCount = pattern.matcher("").groupCount();
+            StringBuilder literal = new StringBuilder();
+            for (int i = 0; i < replacement.length(); i++) {
+                char c = replacement.charAt(i);
+                if (c == '\\') {
+                    if (++i == replacement.length()) {
+                        throw new IllegalArgumentException("Nothing to escape at the end of the replacement");
+                    }
+                    literal.append(replacement.charAt(i));
+                } else if (c != '$') {
+                    literal.append(c);
+                } else if (++i == replacement.length()) {
+                    throw new IllegalArgumentException("Group number or name missing after $");
+                } else if (replacement.charAt(i) == '{') {
+                    int end = replacement.indexOf('}', i);
+                    String name = end < 0 ? "" : replacement.substring(i + 1, end);
+                    if (!name.matches("[a-zA-Z][a-zA-Z0-9]*") || !pattern.pattern().contains("(?<" + name + ">")) {
+                        throw new IllegalArgumentException("No group named " + (end < 0 ? replacement.substring(i) : "{" + name + "}"));
+                    }
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                    groups.add(name);
+                    i = end;
+                } else {
+                    int group = Character.digit(replacement.charAt(i), 10);
+                    if (group < 0) {
+                        throw new IllegalArgumentException("Group number or name missing after $");
+                    }
+                    if (group > groupCount) {
+                        throw new IllegalArgumentException("No group " + group + " in the regex");
+                    }
+                    while (i + 1 < replacement.length() && Character.isDigit(replacement.charAt(i + 1))
+                            && group * 10 + Character.digit(replacement.charAt(i + 1), 10) <= groupCount) { // The longest group number there is
+                        group = group * 10 + Character.digit(replacement.charAt(++i), 10);
+                    }
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                    groups.add(group);
+                }
+            }
+            literals.add(literal.toString());
+        }
+
+        boolean hasGroups() {
+            return !groups.isEmpty();
+        }
+
+        // The replacement for the match matcher holds, which may be null when there are no group references
+        String expand(Matcher matcher) {
+            if (groups.isEmpty()) {
+                return literals.get(0);
+            }
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < groups.size(); i++) {
+                text.append(literals.get(i));
+                Object group = groups.get(i);
+                String value = group instanceof Integer ? matcher.group((Integer) group) : matcher.group((String) group);
+                if (value != null) { // A group that took no part in the match adds nothing
+                    text.append(value);
+                }
+            }
+            return text.append(literals.get(groups.size())).toString();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * StatusPanel.java
+ *
+ * Strip above the text area that reports what the editor is doing and where the caret is. While a file is being
+ * loaded or saved in the background it shows the task's progress and a button that cancels it.
+ */
+
+import javax.swing.*;
+import java.awt.*;
+
+public class StatusPanel extends JPanel {
+    private final JLabel statusLabel = new JLabel(" ");
+    private final JProgressBar progressBar = new JProgressBar(0, 100);
+    private final JButton cancelButton = new JButton("Cancel");
+    private final JLabel caretLabel = new JLabel("Ln 1, Col 1");
+    private SwingWorker<?, ?> task; // Background task being tracked, if any
+
+    public StatusPanel() {
+        super(new GridBagLayout());
+        setName("StatusPanel");
+        statusLabel.setName("StatusLabel");
+        progressBar.setName("ProgressBar");
+        progressBar.setVisible(false);
+        cancelButton.setName("CancelButton");
+        cancelButton.setVisible(false);
+        cancelButton.addActionListener(e -> task.cancel(true));
+        caretLabel.setName("CaretLabel");
+        GridBagConstraints c = new GridBagConstraints(); // Components are all set on one horizontal plane
+        c.fill = GridBagConstraints.HORIZONTAL;
+        c.gridy = 0;
+        c.weightx = 1;
+        c.gridx = 0;
+        add(statusLabel, c);
+        c.gridx = 1;
+        add(progressBar, c);
+        c.weightx = 0.1;
+        c.gridx = 2;
+        add(cancelButton, c);
+        c.gridx = 3;
+        add(caretLabel, c);
+    }
+
+    public void setStatus(String status) {
+        statusLabel.setText(status.isEmpty() ? " " : status); // An empty label would collapse the panel
+    }
+
+    // Shows the caret's line and column, both counting from 1
+    public void setCaret(long line, int column) {
+        caretLabel.setText("Ln " + line + ", Col " + column);
+    }
+
+    // Whether a tracked task is still running, only one runs at a time
+    public boolean isBusy() {
+        return task != null && !task.isDone();
+    }
+
+    // Shows description and the progress of task until it is done, then runs whenDone. Must be called before task is executed
+    public void track(SwingWorker<?, ?> task, String description, Runnable whenDone) {
+        this.task = task;
+        task.addPropertyChangeListener(event -> {
+            if ("progress".equals(event.getPropertyName())) {
+                progressBar.setValue((Integer) event.getNewValue());
+            } else if (event.getNewValue() == SwingWorker.StateValue.DONE) { // Finished, failed or cancelled
+                setStatus(task.isCancelled() ? description + " cancelled" : "");
+                progressBar.setVisible(false);
+                cancelButton.setVisible(false);
+                whenDone.run();
+            }
+        });
+        setStatus(description);
+        progressBar.setValue(0);
+        progressBar.setVisible(true);
+        cancelButton.setVisible(true);
+    }
+}
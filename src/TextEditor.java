@@ -13,21 +13,43 @@ import javax.swing.*;
 import javax.swing.border.Border;
 import javax.swing.border.CompoundBorder;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 import javax.swing.filechooser.FileSystemView;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 import java.awt.*;
-import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
 import java.nio.file.Files;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Objects;
-import java.util.regex.Matcher;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 public class TextEditor extends JFrame {
-    private Matcher matcher; // Holds the current matcher object that powers the search features
-    private final List<Integer> matchStartIndexes = new ArrayList<>(); // Tracks the start indexes of the matches traversed by nextMatch in order for previousMatch to work
+    private MatchIndex matchIndex = MatchIndex.EMPTY; // Start and end offsets of every match of the last search, powers next and previous
     private boolean regexSelected; // Regex search can be toggled
+    private boolean ignoreCaseSelected; // Case-insensitive search can be toggled
+    private String lastReplacement = ""; // Offered again the next time Replace or Replace All asks
+    private Path currentFile; // File last opened or saved, offered first by the save dialog
+    private IncrementalSearch incrementalSearch; // Runs searches in the background while the query is typed
+    private FileTaskRunner runFileTask; // Starts a load or save, see FILE TASKS
+    private final EditJournal editJournal = new EditJournal(); // Autosaves edits so they survive a crash
+    private final UndoHistory undoHistory = new UndoHistory(); // Undo and redo of the edits made to textArea
+    private Pager pager; // Set while a file too big to load is shown read-only a window at a time, see openFile
+    private FileFollower follower; // Set while the open file is followed as it grows, see FOLLOW
+    private long currentFileBytes; // Bytes of currentFile the document was loaded or saved from, where following it starts
+    private boolean trimmedView; // Set once following dropped the first lines, the document is then no longer currentFile from its start
+    private FileWatcher fileWatcher; // Notices when another program changes currentFile, see fileChanged
+
+    private interface FileTaskRunner {
+        void run(SwingWorker<?, ?> task, String description, Runnable whenDone);
+    }
 
     public TextEditor() {
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -35,8 +57,8 @@ public class TextEditor extends JFrame {
         setSize(1000, 1000);
         setLocationRelativeTo(null); // Places window in center of screen
 
-        // * TEXT AREA - Where the text of the selected file goes, takes up majority of the window
-        JTextArea textArea = new JTextArea();
+        // * TEXT AREA - Where the text of the selected file goes, takes up majority of the window. Backed by a piece table so edits never shift the loaded text, and only the visible lines are ever laid out
+        JTextArea textArea = new VirtualTextArea(new PieceTableDocument());
         JScrollPane spTextArea = new JScrollPane(textArea);
         textArea.setName("TextArea");
         spTextArea.setName("ScrollPane");
@@ -44,13 +66,25 @@ public class TextEditor extends JFrame {
 
         // * MAIN PANEL - Holds the open and save buttons, search bar with a GridBag layout
         JPanel mainPanel = new JPanel(new GridBagLayout());
-        mainPanel.setBounds(550, 35, 400, 25);
+        mainPanel.setBounds(450, 35, 500, 25);
         GridBagConstraints c = new GridBagConstraints(); // Components are all set on one horizontal plane
         c.fill = GridBagConstraints.HORIZONTAL;
         c.gridy = 0;
         c.weightx = 0.1; // Load and save buttons have weightx of 0.1
 
+        // * STATUS PANEL - Sits left of the main panel, reports what the editor is doing and shows the progress of loading and saving
+        StatusPanel statusPanel = new StatusPanel();
+        statusPanel.setBounds(50, 35, 380, 25);
+
+        textArea.addCaretListener(e -> { // Line and column of the caret, looked up in the document's line index
+            LineIndex lines = LineIndex.of(textArea.getDocument());
+            int line = lines.lineOf(e.getDot());
+            long firstLine = Pager.firstLineOf(textArea.getDocument()); // A pager window starts part way into its file
+            statusPanel.setCaret(firstLine + line + 1, e.getDot() - lines.lineStart(line) + 1);
+        });
+
         add(mainPanel); // mainPanel has to be added first else textArea won't appear
+        add(statusPanel);
         add(spTextArea);
 
         // * OPEN & SAVE BUTTONS - Any text-based file in the present file system can be opened, edited, and saved
@@ -66,11 +100,8 @@ public class TextEditor extends JFrame {
                 fileChooser.setCurrentDirectory(FileSystemView.getFileSystemView().getHomeDirectory());
                 fileChooser.setVisible(true);
                 if (fileChooser.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) { // Selected element must be text-based file
-                    String loadedFileContent = new String(Files.readAllBytes(fileChooser.getSelectedFile().toPath())); // Create a string that contains all the text in the selected file
-                    textArea.replaceRange(loadedFileContent, 0, textArea.getText().length()); // Write the contents of the selected file to the textArea
+                    openFile(fileChooser.getSelectedFile().toPath(), textArea, statusPanel, () -> { });
                 }
-            } catch (IOException ioException) {
-                ioException.printStackTrace();
             } finally {
                 fileChooser.setVisible(false);
             }
@@ -86,16 +117,40 @@ public class TextEditor extends JFrame {
         JButton saveButton = new JButton("");
         saveButton.setName("SaveButton");
         saveButton.addActionListener(e -> {
+            if (pager != null) {
+                statusPanel.setStatus("Files open in the pager are read-only");
+                return;
+            }
+            if (follower != null) {
+                statusPanel.setStatus("Stop following the file to save it");
+                return;
+            }
             try {
                 fileChooser.setVisible(true);
-                if (fileChooser.showSaveDialog(null) == JFileChooser.APPROVE_OPTION) {
-                        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
-                                new FileOutputStream(fileChooser.getSelectedFile().getName()), StandardCharsets.UTF_8))) {
-                            writer.write(textArea.getText());
+                if (currentFile != null) {
+                    fileChooser.setSelectedFile(currentFile.toFile());
+                }
+                if (fileChooser.showSaveDialog(null) == JFileChooser.APPROVE_OPTION) { // Written to a temp file next to the selected one, then renamed over it
+                    if (trimmedView && fileChooser.getSelectedFile().toPath().equals(currentFile)) { // Would delete the dropped lines from the file
+                        statusPanel.setStatus("Lines were dropped while following, save to another file or open " + currentFile.getFileName() + " again");
+                        return;
+                    }
+                    FileSaver fileSaver = new FileSaver(textArea, fileChooser.getSelectedFile().toPath(), TextEncoding.of(textArea.getDocument())); // Same encoding the file was opened with
+                    runFileTask.run(fileSaver, "Saving " + fileChooser.getSelectedFile().getName(), () -> {
+                        if (fileSaver.isSaved()) {
+                            currentFile = fileSaver.getPath();
+                            trimmedView = false;
+                            try {
+                                BasicFileAttributes attributes = Files.readAttributes(currentFile, BasicFileAttributes.class);
+                                currentFileBytes = attributes.size(); // The document now holds the whole file
+                                watchFile(textArea, statusPanel, attributes);
+                            } catch (IOException ioException) {
+                                ioException.printStackTrace();
+                            }
+                            editJournal.saved(textArea.getDocument(), currentFile); // Everything journaled so far is in the file now
                         }
+                    });
                 }
-            } catch (IOException ioException) {
-                ioException.printStackTrace();
             } finally {
                 fileChooser.setVisible(false);
             }
@@ -115,41 +170,15 @@ public class TextEditor extends JFrame {
         c.gridx = 2;
         mainPanel.add(textField, c);
 
-        // SEARCH BUTTON - Selects the first match in the text
+        // SEARCH BUTTON - Selects the first match in the text. Searching also happens while typing in textField, see INCREMENTAL SEARCH
         JButton searchButton = new JButton("");
         searchButton.setName("StartSearchButton");
         searchButton.addActionListener(e -> {
-            Thread searchThread = new Thread(() -> { // Search done in separate thread to prevent GUI thread lag
-                matchStartIndexes.clear(); // Clear the matchStartIndexes list on each new search
-                String searchInput = textField.getText();
-                if (!regexSelected) { // If regex search is not selected and searchInput contains non-alphanumeric characters, create and pass in string with literal versions of these special chars.
-                    if (searchInput.matches(".*\\W.*")) {
-                        StringBuilder builder = new StringBuilder();
-                        String curChar;
-                        for (int i = 0; i < searchInput.length(); i++) {
-                            curChar = String.valueOf(searchInput.charAt(i));
-                            if (curChar.matches("\\W")) {
-                                builder.append("\\").append(curChar);
-                            } else {
-                                builder.append(curChar);
-                            }
-                        }
-                        searchInput = builder.toString();
-                    }
-                }
-                Pattern searchPattern = Pattern.compile(searchInput);
-                matcher = searchPattern.matcher(textArea.getText()); // Instance variable matcher now holds current matcher object
-                if (matcher.find()) { // Move carat to end of the current match in the textArea, select the match, and focus on textArea
-                    matchStartIndexes.add(matcher.start());
-                    textArea.setCaretPosition(matcher.start() + matcher.group().length());
-                    textArea.select(matcher.start(), matcher.start() + matcher.group().length());
-                    textArea.grabFocus();
-                } else {
-                    textArea.setCaretPosition(0);
-                    System.out.println("NO MATCH FOUND");
-                }
-            });
-            searchThread.start();
+            if (pager != null) { // Only the window is loaded, the rest of the file is scanned page by page
+                searchPager(textArea, textField, statusPanel, true);
+            } else {
+                incrementalSearch.searchNow();
+            }
         });
         // Set searchButton icon
         String searchIconFilePath = Objects.requireNonNull(this.getClass().getClassLoader().getResource("SearchIcon.jpg")).getFile();
@@ -159,39 +188,17 @@ public class TextEditor extends JFrame {
         c.weightx = 0.1; // All the components to the right of search bar have weightx of 0.1
         mainPanel.add(searchButton, c);
 
-        // PREVIOUS MATCH BUTTON - Iterates through the matches backwards by using the matchStartIndexes list to get the desired match. If clicked while at the first match, wraps around to the last match
+        // PREVIOUS MATCH BUTTON - Selects the last match before the current one using the match index. If clicked while at the first match, wraps around to the last match
         JButton previousButton = new JButton("");
         previousButton.setName("PreviousMatchButton");
         previousButton.addActionListener(e -> {
-            // Four cases:
-            // 1. Current match is not the first or last match: Select the match preceding it.
-            // 2. Current match is the first match: Wrap around to the last match.
-            // 3. Current match is the last match & nextButton was clicked, thus clearing matchStartIndexes & resetting matcher: Select the penultimate match
-            // 4. No matches exist: Do nothing
-            try {
-                int desiredStart;
-                if (matchStartIndexes.size() > 1) { // If matcher has been iterated forward more than once, select the match that precedes the current match
-                    desiredStart = matchStartIndexes.get(matchStartIndexes.indexOf(matcher.start()) - 1);
-                } else { // Either current match is the first match, the last match after matchStartIndexes cleared & matcher reset, or no matches exist
-                    int firstOrLast = 1 - matchStartIndexes.size(); // If matchStartIndexes is empty but matches exist, select penultimate match. If matchStartIndexes only has one match, select the final match.
-                    while (matcher.find()) { // Regardless of case iterate forward through all matches, adding the match start indexes to matchStartIndexes
-                        matchStartIndexes.add(matcher.start());
-                    }
-                    desiredStart = matchStartIndexes.size() - 1 - firstOrLast > 0 ? matchStartIndexes.get(matchStartIndexes.size() - 1 - firstOrLast) : 0; // If calculated index is negative, no matches exist
-                }
-                matchStartIndexes.clear(); // Clear matchStartIndexes since the matcher will be reset and iterated forward, adding start indexes one by one again
-                matcher.reset(); // Reset the matcher object in order to start at the first match and iterate to the desired match
-                while (matcher.find()) {
-                    matchStartIndexes.add(matcher.start());
-                    if (matcher.start() == desiredStart) { // Once at the desired match, select it and break out of the loop
-                        textArea.setCaretPosition(matcher.start() + matcher.group().length());
-                        textArea.select(matcher.start(), matcher.start() + matcher.group().length());
-                        textArea.grabFocus();
-                        break;
-                    }
-                }
-            } catch (IllegalStateException illState) {
-                illState.printStackTrace();
+            if (pager != null) {
+                searchPager(textArea, textField, statusPanel, false);
+                return;
+            }
+            int match = matchIndex.previous(textArea.getSelectionStart()); // Binary search for the last match starting before the current one
+            if (match >= 0) {
+                selectMatch(textArea, statusPanel, match, true);
             }
         });
         // Set previousButton icon
@@ -201,24 +208,20 @@ public class TextEditor extends JFrame {
         c.gridx = 4;
         mainPanel.add(previousButton, c);
 
-        // NEXT MATCH BUTTON - Iterates forward through the matches. If clicked while at the last match, matcher is reset. If clicked again, wraps around to the first match.
+        // NEXT MATCH BUTTON - Selects the first match after the current one using the match index. If clicked while at the last match, wraps around to the first match.
         JButton nextButton = new JButton("");
         nextButton.setName("NextMatchButton");
         nextButton.addActionListener(e -> {
-            try {
-                if (matcher.find()) {
-                    matchStartIndexes.add(matcher.start());
-                    textArea.setCaretPosition(matcher.start() + matcher.group().length());
-                    textArea.select(matcher.start(), matcher.start() + matcher.group().length());
-                    textArea.grabFocus();
-                    System.out.println(matcher.start());
-                } else {
-                    matchStartIndexes.clear();
-                    matcher.reset();
-                    System.out.println("NEXT MATCH NOT FOUND");
-                }
-            } catch (NullPointerException nullPointEx) {
-                nullPointEx.printStackTrace();
+            if (pager != null) {
+                searchPager(textArea, textField, statusPanel, true);
+                return;
+            }
+            boolean hasSelection = textArea.getSelectionStart() != textArea.getSelectionEnd(); // A selected match counts as current, a bare caret does not
+            int match = matchIndex.next(textArea.getSelectionStart() + (hasSelection ? 1 : 0));
+            if (match >= 0) {
+                selectMatch(textArea, statusPanel, match, true);
+            } else {
+                System.out.println("NEXT MATCH NOT FOUND");
             }
         });
         // Set nextButton icon
@@ -231,10 +234,63 @@ public class TextEditor extends JFrame {
         // REGEX CHECKBOX
         JCheckBox regexCheckbox = new JCheckBox("Use Regex");
         regexCheckbox.setName("UseRegExCheckbox");
-        regexCheckbox.addActionListener(e -> regexSelected = regexCheckbox.isSelected());
+        regexCheckbox.addActionListener(e -> {
+            regexSelected = regexCheckbox.isSelected();
+            incrementalSearch.schedule(IncrementalSearch.Reason.TYPED);
+        });
         c.gridx = 6;
         mainPanel.add(regexCheckbox, c);
 
+        // IGNORE CASE CHECKBOX
+        JCheckBox ignoreCaseCheckbox = new JCheckBox("Ignore Case");
+        ignoreCaseCheckbox.setName("IgnoreCaseCheckbox");
+        ignoreCaseCheckbox.addActionListener(e -> {
+            ignoreCaseSelected = ignoreCaseCheckbox.isSelected();
+            incrementalSearch.schedule(IncrementalSearch.Reason.TYPED);
+        });
+        c.gridx = 7;
+        mainPanel.add(ignoreCaseCheckbox, c);
+
+        // * INCREMENTAL SEARCH - Searches as the query is typed and when searchButton is clicked, newer searches cancel older ones. Every match is highlighted
+        MatchHighlighter matchHighlighter = new MatchHighlighter(textArea);
+        incrementalSearch = new IncrementalSearch(textArea, textField, () -> regexSelected, () -> ignoreCaseSelected, new IncrementalSearch.Listener() {
+            @Override
+            public void searchFinished(MatchIndex matches, IncrementalSearch.Reason reason) {
+                matchIndex = matches;
+                matchHighlighter.setMatches(matches);
+                statusPanel.setStatus(matches.isEmpty() ? (textField.getText().isEmpty() ? "" : "No match") : matches.size() + " matches");
+                if (reason == IncrementalSearch.Reason.TEXT_EDITED) { // Only the highlights follow edits, the caret stays where the user is typing
+                    return;
+                }
+                if (!matches.isEmpty()) { // A clicked search selects the first match in the text, typing selects the first match from the current one on
+                    boolean requested = reason == IncrementalSearch.Reason.REQUESTED;
+                    selectMatch(textArea, statusPanel, requested ? 0 : matches.next(textArea.getSelectionStart()), requested);
+                } else if (reason == IncrementalSearch.Reason.REQUESTED) {
+                    textArea.setCaretPosition(0);
+                    System.out.println("NO MATCH FOUND");
+                }
+            }
+
+            @Override
+            public void searchFailed(String message, IncrementalSearch.Reason reason) {
+                matchIndex = MatchIndex.EMPTY;
+                matchHighlighter.setMatches(MatchIndex.EMPTY);
+                statusPanel.setStatus(message);
+            }
+        });
+
+        // * FILE TASKS - Loading and saving run one at a time in the background, with their progress in statusPanel
+        runFileTask = (task, description, whenDone) -> {
+            openButton.setEnabled(false);
+            saveButton.setEnabled(false);
+            statusPanel.track(task, description, () -> {
+                openButton.setEnabled(true);
+                saveButton.setEnabled(true);
+                whenDone.run();
+            });
+            task.execute();
+        };
+
         // * MENU BAR - Contains File & Search menus
         JMenuBar menuBar = new JMenuBar();
         menuBar.getColorModel();
@@ -259,9 +315,106 @@ public class TextEditor extends JFrame {
         exitMenuItem.setName("MenuExit");
         exitMenuItem.addActionListener(e -> dispose());
 
+        // FOLLOW - Appends whatever is written to the open file as it grows, like tail -f. The text is read-only meanwhile
+        JCheckBoxMenuItem followMenuItem = new JCheckBoxMenuItem("Follow");
+        followMenuItem.setName("MenuFollow");
+        followMenuItem.addActionListener(e -> {
+            if (follower != null) {
+                stopFollowing(textArea);
+                undoHistory.follow(textArea.getDocument());
+                if (trimmedView) { // Journal offsets and reloads would be off by the dropped text
+                    statusPanel.setStatus("Lines were dropped while following, open " + currentFile.getFileName() + " again to edit it in place");
+                    return;
+                }
+                editJournal.follow(textArea.getDocument(), currentFile);
+                statusPanel.setStatus("");
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(currentFile, BasicFileAttributes.class);
+                    if (attributes.size() == currentFileBytes) {
+                        watchFile(textArea, statusPanel, attributes);
+                    } else { // Written to since it was last read, or replaced
+                        openFile(currentFile, textArea, statusPanel, () -> { });
+                    }
+                } catch (IOException ioException) { // Gone, nothing to watch until it is opened again
+                    ioException.printStackTrace();
+                }
+            } else if (currentFile == null || pager != null || statusPanel.isBusy()) {
+                statusPanel.setStatus("Open a file to follow it");
+            } else {
+                editJournal.stop(); // Appended text is not an edit
+                undoHistory.stop();
+                stopWatching(); // Growth is picked up by the follower, a watcher would offer to reload it
+                textArea.setEditable(false);
+                follower = new FileFollower(currentFile, textArea, TextEncoding.of(textArea.getDocument()), currentFileBytes);
+                statusPanel.setStatus("Following " + currentFile.getFileName());
+            }
+        });
+
         fileMenu.add(openMenuItem);
         fileMenu.add(saveMenuItem);
+        fileMenu.add(followMenuItem);
         fileMenu.add(exitMenuItem);
+        fileMenu.addMenuListener(new MenuListener() {
+            @Override
+            public void menuSelected(MenuEvent e) {
+                followMenuItem.setSelected(follower != null);
+                followMenuItem.setEnabled(follower != null || (currentFile != null && pager == null));
+            }
+
+            @Override
+            public void menuDeselected(MenuEvent e) {
+            }
+
+            @Override
+            public void menuCanceled(MenuEvent e) {
+            }
+        });
+
+        // EDIT MENU
+        JMenu editMenu = new JMenu("Edit");
+        editMenu.setName("MenuEdit");
+        int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+
+        // UNDO
+        JMenuItem undoMenuItem = new JMenuItem("Undo");
+        undoMenuItem.setName("MenuUndo");
+        undoMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcut));
+        undoMenuItem.addActionListener(e -> {
+            if (textArea.isEditable() && undoHistory.canUndo()) { // Not while a task holds the document still
+                undoHistory.undo();
+            }
+        });
+
+        // REDO
+        JMenuItem redoMenuItem = new JMenuItem("Redo");
+        redoMenuItem.setName("MenuRedo");
+        redoMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, shortcut));
+        redoMenuItem.addActionListener(e -> {
+            if (textArea.isEditable() && undoHistory.canRedo()) {
+                undoHistory.redo();
+            }
+        });
+
+        editMenu.add(undoMenuItem);
+        editMenu.add(redoMenuItem);
+        editMenu.addMenuListener(new MenuListener() { // Only offer what can be done right now
+            @Override
+            public void menuSelected(MenuEvent e) {
+                undoMenuItem.setEnabled(undoHistory.canUndo());
+                redoMenuItem.setEnabled(undoHistory.canRedo());
+            }
+
+            @Override
+            public void menuDeselected(MenuEvent e) {
+                undoMenuItem.setEnabled(true); // Accelerators of disabled items do nothing
+                redoMenuItem.setEnabled(true);
+            }
+
+            @Override
+            public void menuCanceled(MenuEvent e) {
+                menuDeselected(e);
+            }
+        });
 
         // SEARCH MENU
         JMenu searchMenu = new JMenu("Search");
@@ -287,16 +440,478 @@ public class TextEditor extends JFrame {
         useRegex.setName("MenuUseRegExp");
         useRegex.addActionListener(e -> regexCheckbox.doClick());
 
+        // IGNORE CASE
+        JMenuItem ignoreCase = new JMenuItem("Ignore Case");
+        ignoreCase.setName("MenuIgnoreCase");
+        ignoreCase.addActionListener(e -> ignoreCaseCheckbox.doClick());
+
+        // GO TO LINE
+        JMenuItem goToLine = new JMenuItem("Go to Line");
+        goToLine.setName("MenuGoToLine");
+        goToLine.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_G, shortcut));
+        goToLine.addActionListener(e -> {
+            LineIndex lines = LineIndex.of(textArea.getDocument());
+            long lineCount = pager != null ? pager.getFile().lineCount() : lines.lineCount();
+            String input = JOptionPane.showInputDialog(this, "Line number (1 - " + lineCount + "):", "Go to Line", JOptionPane.QUESTION_MESSAGE);
+            if (input == null) { // Dialog cancelled
+                return;
+            }
+            try {
+                long line = Math.max(1, Math.min(lineCount, Long.parseLong(input.trim().replace(",", ""))));
+                if (pager != null) {
+                    pager.goToLine(line - 1); // Looked up in the sparse line index of the paged file
+                } else {
+                    textArea.setCaretPosition(lines.lineStart((int) line - 1)); // Looked up in the line index, no scan of the text
+                }
+                textArea.grabFocus();
+            } catch (NumberFormatException notANumber) {
+                statusPanel.setStatus("Not a line number: " + input);
+            }
+        });
+
+        // REPLACE - Replaces the selected match with the text asked for and selects the next match. Without a match selected, selects the next one first
+        JMenuItem replace = new JMenuItem("Replace");
+        replace.setName("MenuReplace");
+        replace.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_R, shortcut));
+        replace.addActionListener(e -> {
+            if (!canReplace(textArea, textField, statusPanel)) {
+                return;
+            }
+            int start = textArea.getSelectionStart();
+            int end = textArea.getSelectionEnd();
+            int match = matchIndex.firstStartingAt(start);
+            if (match == matchIndex.size() || matchIndex.start(match) != start || matchIndex.end(match) != end) {
+                nextButton.doClick();
+                return;
+            }
+            String replacement = askReplacement("Replace");
+            if (replacement == null) {
+                return;
+            }
+            PieceTableContent.Replacements replacements;
+            try {
+                replacements = ReplaceAll.replaceOne(textArea.getDocument(), start, end, textField.getText(), regexSelected, ignoreCaseSelected, replacement);
+                if (replacements.size() == 0) { // The match index is behind an edit
+                    statusPanel.setStatus("The selection is no longer a match");
+                    return;
+                }
+                ((PieceTableDocument) textArea.getDocument()).replace(replacements);
+            } catch (IllegalArgumentException badReplacement) { // Also thrown for an invalid regex
+                statusPanel.setStatus("Invalid replacement: " + badReplacement.getMessage());
+                return;
+            } catch (BadLocationException badLocation) {
+                badLocation.printStackTrace();
+                return;
+            }
+            if (matchIndex.size() == 1) {
+                textArea.setCaretPosition(replacements.map(end));
+                statusPanel.setStatus("Replaced the last match");
+                return;
+            }
+            int next = matchIndex.next(start == end ? end + 1 : end); // Wraps around like Next Match, offsets before the replaced match stay put
+            textArea.setCaretPosition(replacements.map(matchIndex.end(next)));
+            textArea.moveCaretPosition(replacements.map(matchIndex.start(next)));
+            textArea.grabFocus();
+        });
+
+        // REPLACE ALL - Replaces every match in one edit, which a single undo takes back. Matches are found and their new text built in the background
+        JMenuItem replaceAll = new JMenuItem("Replace All");
+        replaceAll.setName("MenuReplaceAll");
+        replaceAll.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_R, shortcut | KeyEvent.SHIFT_DOWN_MASK));
+        replaceAll.addActionListener(e -> {
+            if (!canReplace(textArea, textField, statusPanel)) {
+                return;
+            }
+            String replacement = askReplacement("Replace All");
+            if (replacement == null) {
+                return;
+            }
+            Document document = textArea.getDocument();
+            ReplaceAll task;
+            try {
+                task = new ReplaceAll(document, textField.getText(), regexSelected, ignoreCaseSelected, replacement);
+            } catch (IllegalArgumentException badReplacement) {
+                statusPanel.setStatus("Invalid replacement: " + badReplacement.getMessage());
+                return;
+            }
+            textArea.setEditable(false); // The matches must still be where the task found them when it is done
+            runFileTask.run(task, "Replacing matches of " + textField.getText(), () -> {
+                textArea.setEditable(true);
+                if (task.isCancelled() || textArea.getDocument() != document) {
+                    return;
+                }
+                try {
+                    PieceTableContent.Replacements replacements = task.get();
+                    int caret = textArea.getCaretPosition();
+                    ((PieceTableDocument) document).replace(replacements);
+                    textArea.setCaretPosition(replacements.map(caret));
+                    statusPanel.setStatus(replacements.size() == 0 ? "No match" : "Replaced " + replacements.size() + " matches");
+                } catch (BadLocationException badLocation) {
+                    badLocation.printStackTrace();
+                } catch (InterruptedException | ExecutionException failure) {
+                    statusPanel.setStatus("Replace All failed: " + (failure.getCause() != null ? failure.getCause() : failure));
+                }
+            });
+        });
+
         searchMenu.add(startSearch);
         searchMenu.add(previousMatch);
         searchMenu.add(nextMatch);
         searchMenu.add(useRegex);
+        searchMenu.add(ignoreCase);
+        searchMenu.add(replace);
+        searchMenu.add(replaceAll);
+        // GO TO BYTE OFFSET - Only in the pager, where lines can be too long or too many to count to
+        JMenuItem goToOffset = new JMenuItem("Go to Byte Offset");
+        goToOffset.setName("MenuGoToOffset");
+        goToOffset.addActionListener(e -> {
+            long size = pager.getFile().getSize();
+            String input = JOptionPane.showInputDialog(this, "Byte offset (0 - " + size + "):", "Go to Byte Offset", JOptionPane.QUESTION_MESSAGE);
+            if (input == null) {
+                return;
+            }
+            try {
+                pager.goToOffset(Math.max(0, Math.min(size, Long.parseLong(input.trim().replace(",", "")))));
+                textArea.grabFocus();
+            } catch (NumberFormatException notANumber) {
+                statusPanel.setStatus("Not a byte offset: " + input);
+            }
+        });
+
+        // FIND IN FILES - Searches every file under a chosen directory for the query in textField, listing the matches in a window of their own
+        FileSearchResults fileSearchResults = new FileSearchResults(this, hit -> {
+            if (statusPanel.isBusy()) {
+                statusPanel.setStatus("Wait for the running task before opening " + hit.getPath().getFileName());
+            } else if (hit.getPath().equals(currentFile) || (pager != null && hit.getPath().equals(pager.getFile().getPath()))) {
+                goToHit(textArea, hit);
+            } else {
+                openFile(hit.getPath(), textArea, statusPanel, () -> goToHit(textArea, hit));
+            }
+        });
+        JMenuItem findInFiles = new JMenuItem("Find in Files");
+        findInFiles.setName("MenuFindInFiles");
+        findInFiles.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, shortcut | KeyEvent.SHIFT_DOWN_MASK));
+        findInFiles.addActionListener(e -> {
+            String query = textField.getText();
+            if (query.isEmpty()) {
+                statusPanel.setStatus("Type what to find in the search field first");
+                return;
+            }
+            FileSearch[] search = new FileSearch[1];
+            ParallelSearch.RangeSearcher searcher;
+            boolean lineBounded;
+            try {
+                if (regexSelected) {
+                    Pattern pattern = PatternCache.get(query, true, ignoreCaseSelected, false);
+                    searcher = ParallelSearch.regex(pattern, () -> search[0].isCancelled()); // Stopped by cancelling, a slow file does not time the others out
+                    lineBounded = ParallelSearch.isLineBounded(pattern);
+                } else {
+                    LiteralMatcher literal = new LiteralMatcher(query, ignoreCaseSelected);
+                    searcher = literal;
+                    lineBounded = literal.isLineBounded();
+                }
+            } catch (PatternSyntaxException syntaxException) {
+                statusPanel.setStatus("Invalid regex: " + syntaxException.getDescription());
+                return;
+            }
+            try {
+                fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+                fileChooser.setCurrentDirectory(currentFile != null ? currentFile.toAbsolutePath().getParent().toFile() : FileSystemView.getFileSystemView().getHomeDirectory());
+                fileChooser.setVisible(true);
+                if (fileChooser.showDialog(this, "Find in Files") != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                Path root = fileChooser.getSelectedFile().toPath().toAbsolutePath().normalize();
+                TrigramIndex index = TrigramIndex.forRoot(root);
+                boolean indexed = index.isBuilt();
+                search[0] = new FileSearch(root, searcher, lineBounded, index, TrigramIndex.requiredLiterals(query, regexSelected), hits -> fileSearchResults.addHits(search[0], hits));
+                search[0].addPropertyChangeListener(event -> {
+                    if (event.getNewValue() == SwingWorker.StateValue.DONE) { // Index what changed for the next search, after this one stops reading files
+                        index.update(() -> SwingUtilities.invokeLater(() -> {
+                            if (!indexed && index.isBuilt()) {
+                                statusPanel.setStatus("Indexed " + index.fileCount() + " files under " + root + " for Find in Files");
+                            }
+                        }));
+                    }
+                });
+                fileSearchResults.show(search[0]);
+                search[0].execute();
+            } finally {
+                fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+                fileChooser.setVisible(false);
+            }
+        });
+
+        searchMenu.add(goToLine);
+        searchMenu.add(goToOffset);
+        searchMenu.add(findInFiles);
+        searchMenu.addMenuListener(new MenuListener() {
+            @Override
+            public void menuSelected(MenuEvent e) {
+                goToOffset.setEnabled(pager != null);
+            }
+
+            @Override
+            public void menuDeselected(MenuEvent e) {
+            }
+
+            @Override
+            public void menuCanceled(MenuEvent e) {
+            }
+        });
 
         menuBar.add(fileMenu);
+        menuBar.add(editMenu);
         menuBar.add(searchMenu);
         setJMenuBar(menuBar);
 
+        // * AUTOSAVE - Edits are journaled in the background, whatever was typed before a crash is offered back on the next start
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                editJournal.shutdown();
+            }
+
+            @Override
+            public void windowClosed(WindowEvent e) { // Exit from the menu disposes the frame without closing it first
+                editJournal.shutdown();
+            }
+        });
+
         setVisible(true);
+        undoHistory.follow(textArea.getDocument());
+        offerRecovery(textArea, null);
+        editJournal.follow(textArea.getDocument(), null);
+    }
+
+    // Replays the journal left by a previous session over the file just opened, or over the new empty document when file is null
+    private void offerRecovery(JTextArea textArea, Path file) {
+        if (!EditJournal.canRecover(file)) {
+            return;
+        }
+        String name = file == null ? "the untitled document" : file.getFileName().toString();
+        if (JOptionPane.showConfirmDialog(this, "Recover unsaved changes to " + name + "?", "Recover", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+            try {
+                EditJournal.recover(textArea.getDocument(), file);
+            } catch (IOException ioException) {
+                ioException.printStackTrace();
+            }
+        } else {
+            EditJournal.discard(file);
+        }
+    }
+
+    // Loads path into textArea in the background, or shows it in the pager when it is too big to load, then runs
+    // whenOpened if that worked
+    private void openFile(Path path, JTextArea textArea, StatusPanel statusPanel, Runnable whenOpened) {
+        boolean paged;
+        try {
+            paged = Pager.shouldPage(path);
+        } catch (IOException ioException) {
+            ioException.printStackTrace();
+            return;
+        }
+        editJournal.stop(); // The chunks being loaded are not edits
+        undoHistory.stop();
+        stopFollowing(textArea);
+        Pager previousPager = pager;
+        if (pager != null) {
+            pager.close();
+            pager = null;
+        }
+        if (paged) { // Too big to load, only indexed and shown a window at a time
+            Pager.Opener opener = new Pager.Opener(path, textArea);
+            runFileTask.run(opener, "Indexing " + path.getFileName(), () -> {
+                if (opener.getFile() != null) {
+                    pager = new Pager(opener.getFile(), textArea);
+                    currentFile = null; // Nothing to save, the pager is read-only
+                    trimmedView = false;
+                    stopWatching();
+                    statusPanel.setStatus(pager.getFile().lineCount() + " lines, read-only");
+                    whenOpened.run();
+                } else if (previousPager != null) {
+                    pager = new Pager(previousPager.getFile(), textArea);
+                } else {
+                    undoHistory.follow(textArea.getDocument());
+                    editJournal.follow(textArea.getDocument(), currentFile);
+                }
+            });
+            return;
+        }
+        FileLoader fileLoader = new FileLoader(path, textArea); // Detecting the encoding, reading and decoding happen off the EDT
+        runFileTask.run(fileLoader, "Loading " + path.getFileName(), () -> {
+            if (previousPager != null && (fileLoader.isCancelled() || textArea.getDocument() == fileLoader.getPrevious())) {
+                pager = new Pager(previousPager.getFile(), textArea); // Back to the file that was open before
+                return;
+            }
+            undoHistory.follow(textArea.getDocument()); // Recovered edits can be undone
+            if (!fileLoader.isCancelled() && textArea.getDocument() != fileLoader.getPrevious()) {
+                currentFile = fileLoader.getPath();
+                currentFileBytes = fileLoader.getLoadedBytes();
+                trimmedView = false;
+                watchFile(textArea, statusPanel, fileLoader.getAttributes()); // Before recovery, whose edits make the document differ from the file
+                offerRecovery(textArea, currentFile);
+                editJournal.follow(textArea.getDocument(), currentFile);
+                whenOpened.run();
+                return;
+            }
+            editJournal.follow(textArea.getDocument(), currentFile);
+        });
+    }
+
+    // Moves the caret to a match found by Find in Files in the file open in textArea and selects it
+    private void goToHit(JTextArea textArea, FileSearch.Hit hit) {
+        int lineStart;
+        if (pager != null) {
+            pager.goToLine(hit.getLine()); // Slides the window to the line and puts the caret at its start
+            lineStart = textArea.getCaretPosition();
+        } else {
+            LineIndex lines = LineIndex.of(textArea.getDocument());
+            if (hit.getLine() >= lines.lineCount()) { // The file changed since it was searched
+                return;
+            }
+            lineStart = lines.lineStart((int) hit.getLine());
+        }
+        int length = textArea.getDocument().getLength();
+        int start = Math.min(length, lineStart + hit.getColumn());
+        int end = Math.min(length, start + hit.getSnippetEnd() - hit.getSnippetStart());
+        textArea.setCaretPosition(end);
+        textArea.select(start, end);
+        textArea.grabFocus();
+    }
+
+    // Starts watching currentFile for changes made by other programs, the document of textArea holding the file as it
+    // was when attributes were read
+    private void watchFile(JTextArea textArea, StatusPanel statusPanel, BasicFileAttributes attributes) {
+        stopWatching();
+        Document document = textArea.getDocument();
+        fileWatcher = new FileWatcher(currentFile, document, TextEncoding.of(document), attributes, () -> fileChanged(textArea, statusPanel));
+    }
+
+    private void stopWatching() {
+        if (fileWatcher != null) {
+            fileWatcher.stop();
+            fileWatcher = null;
+        }
+    }
+
+    // Brings the document up to date after another program changed currentFile: only the changed parts are reloaded when
+    // the document has no edits of its own, otherwise the user chooses between their edits and the file
+    private void fileChanged(JTextArea textArea, StatusPanel statusPanel) {
+        if (fileWatcher == null || textArea.getDocument() != fileWatcher.getDocument()) {
+            return;
+        }
+        if (statusPanel.isBusy()) { // Looked at again once the running task is done
+            Timer retry = new Timer(500, e -> fileChanged(textArea, statusPanel));
+            retry.setRepeats(false);
+            retry.start();
+            return;
+        }
+        Path path = fileWatcher.getPath();
+        if (fileWatcher.isEdited()) {
+            if (JOptionPane.showConfirmDialog(this, path.getFileName() + " was changed by another program. Reload it and lose your changes?",
+                    "File Changed", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+                openFile(path, textArea, statusPanel, () -> { });
+            } else {
+                fileWatcher.ignore();
+            }
+            return;
+        }
+        FileWatcher.Reload reload = fileWatcher.reload();
+        editJournal.stop(); // The reloaded parts are not edits
+        undoHistory.stop();
+        textArea.setEditable(false);
+        runFileTask.run(reload, "Reloading " + path.getFileName(), () -> {
+            textArea.setEditable(true);
+            if (reload.needsOpening()) {
+                openFile(path, textArea, statusPanel, () -> { });
+                return;
+            }
+            undoHistory.follow(textArea.getDocument());
+            if (!reload.isCancelled()) {
+                editJournal.saved(textArea.getDocument(), path); // The document matches the file again
+                statusPanel.setStatus("Reloaded " + path.getFileName());
+            } else {
+                editJournal.follow(textArea.getDocument(), path);
+            }
+        });
+    }
+
+    // Stops appending to the document of textArea, which can be edited again
+    private void stopFollowing(JTextArea textArea) {
+        if (follower != null) {
+            follower.stop(); // Also appends what was read but not shown yet
+            currentFileBytes = follower.getPosition(); // Following again carries on from there
+            trimmedView |= follower.hasDroppedLines();
+            follower = null;
+            textArea.setEditable(true);
+        }
+    }
+
+    // Scans the file open in the pager for the next or previous match of the query from the caret on, the pager moves
+    // to the match once one is found
+    private void searchPager(JTextArea textArea, JTextField textField, StatusPanel statusPanel, boolean forward) {
+        String query = textField.getText();
+        if (query.isEmpty() || statusPanel.isBusy()) {
+            return;
+        }
+        Pager.Search[] search = new Pager.Search[1];
+        ParallelSearch.RangeSearcher searcher;
+        try {
+            searcher = regexSelected
+                    ? ParallelSearch.regex(PatternCache.get(query, true, ignoreCaseSelected, false), () -> search[0].isCancelled()) // Cancelled from statusPanel instead of timing out
+                    : new LiteralMatcher(query, ignoreCaseSelected);
+        } catch (PatternSyntaxException syntaxException) {
+            statusPanel.setStatus("Invalid regex: " + syntaxException.getDescription());
+            return;
+        }
+        search[0] = pager.search(searcher, forward);
+        runFileTask.run(search[0], "Searching " + pager.getFile().getPath().getFileName(), () -> {
+            if (search[0].getMatch() != null) {
+                pager.select(search[0]);
+                statusPanel.setStatus("Match on line " + (pager.lineOf(textArea.getSelectionStart()) + 1));
+                textArea.grabFocus();
+            } else if (!search[0].isCancelled()) {
+                statusPanel.setStatus("No match");
+            }
+        });
+    }
+
+    // Whether the document of textArea may be replaced in, saying why not in statusPanel otherwise
+    private boolean canReplace(JTextArea textArea, JTextField textField, StatusPanel statusPanel) {
+        if (pager != null) {
+            statusPanel.setStatus("Files open in the pager are read-only");
+        } else if (follower != null) {
+            statusPanel.setStatus("Stop following the file to replace in it");
+        } else if (statusPanel.isBusy() || !textArea.isEditable()) {
+            statusPanel.setStatus("Wait for the running task before replacing");
+        } else if (textField.getText().isEmpty()) {
+            statusPanel.setStatus("Type what to find in the search field first");
+        } else {
+            return true;
+        }
+        return false;
+    }
+
+    // Asks what to replace matches with, offering the last replacement. Returns null if the dialog is cancelled
+    private String askReplacement(String title) {
+        String hint = regexSelected ? "Replace with ($1 or ${name} for a group):" : "Replace with:";
+        Object input = JOptionPane.showInputDialog(this, hint, title, JOptionPane.QUESTION_MESSAGE, null, null, lastReplacement);
+        if (input != null) {
+            lastReplacement = (String) input;
+        }
+        return (String) input;
+    }
+
+    // Moves the caret to the end of the given match and selects it, focusing on textArea unless the user is still typing a query
+    private void selectMatch(JTextArea textArea, StatusPanel statusPanel, int match, boolean focus) {
+        textArea.setCaretPosition(matchIndex.end(match));
+        textArea.select(matchIndex.start(match), matchIndex.end(match));
+        int line = LineIndex.of(textArea.getDocument()).lineOf(matchIndex.start(match)); // Lines count from 1 on screen
+        statusPanel.setStatus("Match " + (match + 1) + " of " + matchIndex.size() + ", line " + (line + 1));
+        if (focus) {
+            textArea.grabFocus();
+        }
     }
 
     public static void setMargin(JComponent aComponent, int aTop, int aRight, int aBottom, int aLeft) {
@@ -0,0 +1,169 @@
+/**
+ * TextEncoding.java
+ *
+ * Charset of a file together with whether it starts with a byte order mark. Opening a file detects its encoding from
+ * the byte order mark or, without one, from a sample of its first bytes, and records it on the document so saving
+ * writes the text back the way it was read. Text that is neither valid UTF-8 nor looks like UTF-16 is read as
+ * ISO-8859-1 unless the platform charset is something else, since every byte sequence survives ISO-8859-1 unchanged.
+ */
+
+import javax.swing.text.Document;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public final class TextEncoding {
+    public static final TextEncoding UTF_8 = new TextEncoding(StandardCharsets.UTF_8, new byte[0]); // Used for new documents
+    private static final int SAMPLE_BYTES = 64 * 1024; // Bytes looked at when there is no byte order mark
+    private static final byte[] UTF_8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+    private static final byte[] UTF_16BE_BOM = {(byte) 0xFE, (byte) 0xFF};
+    private static final byte[] UTF_16LE_BOM = {(byte) 0xFF, (byte) 0xFE};
+
+    private final Charset charset;
+    private final byte[] bom; // Written before the text, empty when the file has none
+
+    private TextEncoding(Charset charset, byte[] bom) {
+        this.charset = charset;
+        this.bom = bom;
+    }
+
+    // Encoding recorded on document when it was loaded, or UTF-8 for a document that never came from a file
+    public static TextEncoding of(Document document) {
+        Object encoding = document.getProperty(TextEncoding.class);
+        return encoding instanceof TextEncoding ? (TextEncoding) encoding : UTF_8;
+    }
+
+    public void recordOn(Document document) {
+        document.putProperty(TextEncoding.class, this);
+    }
+
+    // Works out the encoding of the file open in channel, reading at most SAMPLE_BYTES from its start
+    public static TextEncoding detect(FileChannel channel) throws IOException {
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE_BYTES, channel.size()));
+        while (sample.hasRemaining() && channel.read(sample, sample.position()) != -1) {
+            // Keep reading until the sample is full
+        }
+        sample.flip();
+        return detect(sample, sample.limit() == channel.size());
+    }
+
+    // Works out the encoding of text starting with the bytes remaining in sample, which may be all of it
+    public static TextEncoding detect(ByteBuffer sample, boolean wholeFile) {
+        sample = sample.slice();
+        if (sample.remaining() > SAMPLE_BYTES) {
+            sample.limit(SAMPLE_BYTES);
+            wholeFile = false;
+        }
+        if (startsWith(sample, UTF_8_BOM)) {
+            return new TextEncoding(StandardCharsets.UTF_8, UTF_8_BOM);
+        }
+        if (startsWith(sample, UTF_16BE_BOM)) {
+            return new TextEncoding(StandardCharsets.UTF_16BE, UTF_16BE_BOM);
+        }
+        if (startsWith(sample, UTF_16LE_BOM)) {
+            return new TextEncoding(StandardCharsets.UTF_16LE, UTF_16LE_BOM);
+        }
+        Charset utf16 = guessUtf16(sample);
+        if (utf16 != null) {
+            return new TextEncoding(utf16, new byte[0]);
+        }
+        if (isUtf8(sample, wholeFile)) { // Plain ASCII lands here too, UTF-8 leaves it unchanged
+            return UTF_8;
+        }
+        Charset fallback = Charset.defaultCharset().equals(StandardCharsets.UTF_8) ? StandardCharsets.ISO_8859_1 : Charset.defaultCharset();
+        return new TextEncoding(fallback, new byte[0]);
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    // Number of bytes the byte order mark takes at the start of the file, skipped when decoding
+    public int bomLength() {
+        return bom.length;
+    }
+
+    public byte[] getBom() {
+        return bom.clone();
+    }
+
+    public CharsetDecoder newDecoder() {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    public CharsetEncoder newEncoder() {
+        return charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof TextEncoding && charset.equals(((TextEncoding) other).charset) && Arrays.equals(bom, ((TextEncoding) other).bom);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * charset.hashCode() + Arrays.hashCode(bom);
+    }
+
+    @Override
+    public String toString() {
+        return bom.length > 0 ? charset.name() + " with BOM" : charset.name();
+    }
+
+    private static boolean startsWith(ByteBuffer bytes, byte[] prefix) {
+        if (bytes.remaining() < prefix.length) {
+            return false;
+        }
+        byte[] start = new byte[prefix.length];
+        bytes.get(bytes.position(), start);
+        return Arrays.equals(start, prefix);
+    }
+
+    // Text in UTF-16 without a byte order mark is mostly ASCII with a zero byte next to every char, on the odd bytes for
+    // little-endian and the even ones for big-endian
+    private static Charset guessUtf16(ByteBuffer sample) {
+        int pairs = sample.remaining() / 2;
+        if (pairs < 2) {
+            return null;
+        }
+        int evenZeros = 0;
+        int oddZeros = 0;
+        for (int i = 0; i < pairs * 2; i += 2) {
+            if (sample.get(i) == 0) {
+                evenZeros++;
+            }
+            if (sample.get(i + 1) == 0) {
+                oddZeros++;
+            }
+        }
+        if (oddZeros > pairs * 3 / 10 && evenZeros < pairs / 20) {
+            return StandardCharsets.UTF_16LE;
+        }
+        if (evenZeros > pairs * 3 / 10 && oddZeros < pairs / 20) {
+            return StandardCharsets.UTF_16BE;
+        }
+        return null;
+    }
+
+    // Whether the sample decodes as UTF-8, allowing a char cut off by the end of the sample unless it is the whole file
+    private static boolean isUtf8(ByteBuffer sample, boolean wholeFile) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer chars = CharBuffer.allocate(sample.remaining());
+        CoderResult result = decoder.decode(sample.duplicate(), chars, wholeFile);
+        return !result.isError();
+    }
+}
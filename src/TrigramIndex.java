@@ -0,0 +1,891 @@
+/**
+ * TrigramIndex.java
+ *
+ * Index of the three-char sequences in every file under a directory, kept on disk so Find in Files only reads the
+ * files that can hold a match. Every query match contains the trigrams of the literal text in the query, so only files
+ * holding all of them are candidates. Chars are case-folded before they are indexed, which lets one index serve case-sensitive and
+ * case-insensitive searches alike. A trigram of chars below 256 is its own key and any other is hashed; a collision
+ * only adds candidates, it never loses a match.
+ *
+ * The index lives in one file: a table of the indexed files with their size and modification time, a posting list per
+ * trigram holding the ids of the files it occurs in as delta-encoded varints, and a table of the trigrams sorted by key
+ * that is memory-mapped and binary-searched, so opening the index reads only the file table. It is updated in the
+ * background from modification times: only new and modified files are read, their (trigram, file) pairs are sorted in
+ * runs that spill to disk when they get big, and those runs are merged with the postings of the unchanged files into a
+ * new index file. Each version of the index gets a file name of its own, renamed into place once complete, and the
+ * snapshot switches to it. The file of the version before is then deleted, which fails on Windows while the old
+ * snapshot still has it mapped, so any older version left over is deleted by a later update or the next start.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+public final class TrigramIndex {
+    private static final Path INDEX_DIRECTORY = Paths.get(System.getProperty("user.home"), ".texteditor-index");
+    private static final int MAGIC = 0x54474931; // "TGI1"
+    private static final int TRAILER_BYTES = 20; // Postings start, table start and trigram count at the end of the file
+    private static final int TABLE_ENTRY_BYTES = 16; // Key, posting count and posting offset of a trigram
+    private static final int RUN_PAIRS = 8 * 1024 * 1024; // Pairs sorted in memory before they are spilled to a run file
+    private static final int READ_BYTES = FileSearch.ENCODING_SAMPLE_BYTES; // Bytes of a file read at a time while indexing it, the first read holds the whole encoding sample
+    private static final int HASHED_KEY = 1 << 30; // Keys of trigrams with a char of 256 or more have this bit set
+    private static final Pattern COMMENTS_FLAG = Pattern.compile("\\(\\?[a-zA-Z-]*x");
+
+    private static final Map<Path, TrigramIndex> indexes = new HashMap<>(); // One per searched directory, guarded by itself
+    private static final ExecutorService updater = Executors.newSingleThreadExecutor(runnable -> { // Updates run one at a time
+        Thread thread = new Thread(runnable, "Index");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private final Path root;
+    private final String fileName; // Version n of the index is the file fileName.n.idx, version 0 the fileName.idx of older builds
+    private volatile Snapshot snapshot; // Contents of the index file, null until the directory has been indexed once
+    private final AtomicBoolean updateQueued = new AtomicBoolean();
+
+    // What one version of the index file holds
+    private static final class Snapshot {
+        private final String[] paths; // Relative to the root, by file id
+        private final long[] sizes;
+        private final long[] modified; // Milliseconds
+        private final boolean[] text; // False for files that were binary or could not be read, which never match
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final ByteBuffer postings; // Mapped from the start of the postings to the end of the trigram table
+        private final long tableStart; // Offset of the trigram table in postings
+        private final int trigramCount;
+
+        private Snapshot(String[] paths, long[] sizes, long[] modified, boolean[] text, ByteBuffer postings, long tableStart, int trigramCount) {
+            this.paths = paths;
+            this.sizes = sizes;
+            this.modified = modified;
+            this.text = text;
+            this.postings = postings;
+            this.tableStart = tableStart;
+            this.trigramCount = trigramCount;
+            for (int id = 0; id < paths.length; id++) {
+                ids.put(paths[id], id);
+            }
+        }
+
+        // Table entry of key, or -1 when no indexed file holds it
+        private int find(int key) {
+            int low = 0;
+            int high = trigramCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int midKey = key(mid);
+                if (midKey < key) {
+                    low = mid + 1;
+                } else if (midKey > key) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private int key(int entry) {
+            return postings.getInt((int) (tableStart + (long) entry * TABLE_ENTRY_BYTES));
+        }
+
+        private int count(int entry) {
+            return postings.getInt((int) (tableStart + (long) entry * TABLE_ENTRY_BYTES + 4));
+        }
+
+        // File ids in the posting list of a table entry, in increasing order
+        private int[] ids(int entry) {
+            long base = tableStart + (long) entry * TABLE_ENTRY_BYTES;
+            int count = postings.getInt((int) base + 4);
+            int position = (int) postings.getLong((int) base + 8);
+            int[] ids = new int[count];
+            int id = -1;
+            for (int i = 0; i < count; i++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = postings.get(position++);
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += delta;
+                ids[i] = id;
+            }
+            return ids;
+        }
+    }
+
+    private TrigramIndex(Path root) {
+        this.root = root;
+        fileName = Integer.toHexString(root.toString().hashCode()) + "-" + root.getFileName();
+        try {
+            long newest = newestVersion();
+            snapshot = newest < 0 ? null : load(indexFile(newest));
+            deleteVersionsBefore(newest);
+        } catch (IOException | RuntimeException unreadable) { // Built again from scratch by the next update
+            snapshot = null;
+        }
+    }
+
+    // The index of the directory root, read from disk the first time it is asked for
+    public static TrigramIndex forRoot(Path root) {
+        Path absolute = root.toAbsolutePath().normalize();
+        synchronized (indexes) {
+            return indexes.computeIfAbsent(absolute, TrigramIndex::new);
+        }
+    }
+
+    // Whether the directory has been indexed, possibly before files in it changed
+    public boolean isBuilt() {
+        return snapshot != null;
+    }
+
+    public int fileCount() {
+        Snapshot current = snapshot;
+        return current == null ? 0 : current.paths.length;
+    }
+
+    // Files that held every trigram of literals when they were indexed, or null when the index cannot narrow the search
+    // down because it is not built or no literal is three chars long. Files changed since are found by forEachChanged
+    public List<Path> candidates(List<String> literals) {
+        Snapshot current = snapshot;
+        if (current == null) {
+            return null;
+        }
+        IntSet keys = new IntSet();
+        for (String literal : literals) {
+            addTrigrams(literal, 0, literal.length(), keys);
+        }
+        if (keys.size() == 0) {
+            return null;
+        }
+        int[] entries = new int[keys.size()];
+        int count = 0;
+        for (int key : keys.toArray()) {
+            int entry = current.find(key);
+            if (entry < 0) { // No indexed file holds this trigram
+                return new ArrayList<>();
+            }
+            entries[count++] = entry;
+        }
+        Integer[] order = new Integer[count]; // Shortest posting lists first, so the intersection shrinks fastest
+        for (int i = 0; i < count; i++) {
+            order[i] = entries[i];
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(current.count(a), current.count(b)));
+        int[] ids = current.ids(order[0]);
+        int size = ids.length;
+        for (int i = 1; i < count && size > 0; i++) {
+            size = intersect(ids, size, current.ids(order[i]));
+        }
+        List<Path> files = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            if (current.text[ids[i]]) {
+                files.add(root.resolve(current.paths[ids[i]]));
+            }
+        }
+        return files;
+    }
+
+    // Walks the directory and hands consumer every file that is not in the index or was modified since it was indexed,
+    // looking only at sizes and modification times. Stops early once cancelled returns true
+    public void forEachChanged(Consumer<Path> consumer, BooleanSupplier cancelled) throws IOException {
+        Snapshot current = snapshot;
+        walk((path, attributes) -> {
+            Integer id = current == null ? null : current.ids.get(root.relativize(path).toString());
+            if (id == null || current.sizes[id] != attributes.size() || current.modified[id] != attributes.lastModifiedTime().toMillis()) {
+                consumer.accept(path);
+            }
+        }, cancelled);
+    }
+
+    // Brings the index up to date in the background unless an update is already waiting, then runs whenDone on the thread
+    // that did it
+    public void update(Runnable whenDone) {
+        if (!updateQueued.compareAndSet(false, true)) {
+            return;
+        }
+        updater.execute(() -> {
+            updateQueued.set(false); // Changes made from now on need another update
+            try {
+                update();
+            } catch (IOException | RuntimeException updateException) {
+                updateException.printStackTrace();
+            }
+            whenDone.run();
+        });
+    }
+
+    // Literal strings every match of query contains, used to pick candidate files. For a regex only text outside groups,
+    // classes and optional parts counts, and nothing does once the regex has an alternative or ignores whitespace
+    public static List<String> requiredLiterals(String query, boolean regex) {
+        List<String> literals = new ArrayList<>();
+        if (!regex) {
+            literals.add(query);
+            return literals;
+        }
+        if (query.indexOf('|') >= 0 || COMMENTS_FLAG.matcher(query).find()) { // With (?x) the spaces in the regex are not text
+            return literals;
+        }
+        StringBuilder run = new StringBuilder();
+        int depth = 0; // Group nesting, text inside groups is not looked at
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c == '\\' && i + 1 < query.length()) {
+                char next = query.charAt(++i);
+                if (next == 'Q') { // Quoted up to \E
+                    int end = query.indexOf("\\E", i + 1);
+                    String quoted = query.substring(i + 1, end < 0 ? query.length() : end);
+                    if (depth == 0) {
+                        run.append(quoted);
+                    }
+                    i = end < 0 ? query.length() : end + 1;
+                } else if (Character.isLetterOrDigit(next)) { // A class such as \d, a boundary, a back reference or an escaped char
+                    flush(run, literals);
+                    i = escapeEnd(query, i);
+                } else if (depth == 0) {
+                    run.append(next);
+                }
+            } else if (c == '[') { // Skip the class, which stands for one unknown char
+                flush(run, literals);
+                i = classEnd(query, i);
+            } else if (c == '(') {
+                flush(run, literals);
+                depth++;
+            } else if (c == ')') {
+                flush(run, literals);
+                depth = Math.max(0, depth - 1);
+            } else if (c == '*' || c == '?' || c == '{') { // The char before may not be there at all
+                if (run.length() > 0) {
+                    run.setLength(run.length() - 1);
+                }
+                flush(run, literals);
+                if (c == '{') {
+                    int end = query.indexOf('}', i);
+                    i = end < 0 ? query.length() : end;
+                }
+            } else if (c == '+' || c == '.' || c == '^' || c == '$') { // Repetition and anchors end the literal text
+                flush(run, literals);
+            } else if (depth == 0) {
+                run.append(c);
+            }
+        }
+        flush(run, literals);
+        return literals;
+    }
+
+    private static void flush(StringBuilder run, List<String> literals) {
+        if (run.length() >= 3) {
+            literals.add(run.toString());
+        }
+        run.setLength(0);
+    }
+
+    // Offset of the last char of the escape whose letter or digit is at start, so that nothing it spells out is taken
+    // for text. Back references take every digit that follows, which may drop some text but never makes any up
+    private static int escapeEnd(String regex, int start) {
+        char letter = regex.charAt(start);
+        int i = start + 1;
+        if (Character.isDigit(letter)) { // \0ooo in octal or a back reference such as \12
+            while (i < regex.length() && Character.isDigit(regex.charAt(i))) {
+                i++;
+            }
+            return i - 1;
+        }
+        switch (letter) {
+            case 'x':
+            case 'p':
+            case 'P':
+            case 'N':
+                if (i < regex.length() && regex.charAt(i) == '{') { // \x{h...h}, \p{Lu} or \N{name}
+                    int end = regex.indexOf('}', i);
+                    return end < 0 ? regex.length() - 1 : end;
+                }
+                return Math.min(regex.length(), i + (letter == 'x' ? 2 : 1)) - 1; // \xhh or \pL
+            case 'u':
+                return Math.min(regex.length(), i + 4) - 1;
+            case 'c':
+                return Math.min(regex.length(), i + 1) - 1;
+            case 'k': // \k<name>
+                int end = regex.indexOf('>', i);
+                return end < 0 ? regex.length() - 1 : end;
+            default:
+                return start;
+        }
+    }
+
+    // Offset of the ] closing the class opened at start, allowing a ] right after the [ or [^ and escaped chars
+    private static int classEnd(String regex, int start) {
+        int i = start + 1;
+        if (i < regex.length() && regex.charAt(i) == '^') {
+            i++;
+        }
+        if (i < regex.length() && regex.charAt(i) == ']') {
+            i++;
+        }
+        int depth = 1; // Nested classes such as [a-z&&[^q]]
+        for (; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']' && --depth == 0) {
+                return i;
+            }
+        }
+        return regex.length();
+    }
+
+    private Path indexFile(long version) {
+        return INDEX_DIRECTORY.resolve(version == 0 ? fileName + ".idx" : fileName + "." + version + ".idx");
+    }
+
+    // Version of the index file named name, or -1 when it is not one of this directory's
+    private long versionOf(String name) {
+        if (name.equals(fileName + ".idx")) {
+            return 0;
+        }
+        if (!name.startsWith(fileName + ".") || !name.endsWith(".idx")) {
+            return -1;
+        }
+        String version = name.substring(fileName.length() + 1, name.length() - ".idx".length());
+        return version.matches("[1-9][0-9]{0,17}") ? Long.parseLong(version) : -1;
+    }
+
+    // Highest version of the index files on disk, or -1 when there is none
+    private long newestVersion() throws IOException {
+        long newest = -1;
+        if (Files.isDirectory(INDEX_DIRECTORY)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(INDEX_DIRECTORY)) {
+                for (Path path : files) {
+                    newest = Math.max(newest, versionOf(path.getFileName().toString()));
+                }
+            }
+        }
+        return newest;
+    }
+
+    // Deletes the index files older than version that can be, a file still mapped on Windows stays for another try
+    private void deleteVersionsBefore(long version) throws IOException {
+        if (!Files.isDirectory(INDEX_DIRECTORY)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(INDEX_DIRECTORY)) {
+            for (Path path : files) {
+                long fileVersion = versionOf(path.getFileName().toString());
+                if (fileVersion >= 0 && fileVersion < version) {
+                    try {
+                        Files.deleteIfExists(path);
+                    } catch (IOException inUse) {
+                        // Deleted by a later update
+                    }
+                }
+            }
+        }
+    }
+
+    // Reads an index file, returning null when it belongs to another directory
+    private Snapshot load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+            while (trailer.hasRemaining() && channel.read(trailer, size - TRAILER_BYTES + trailer.position()) != -1) {
+                // Keep reading until the trailer is complete
+            }
+            trailer.flip();
+            long postingsStart = trailer.getLong();
+            long tableStart = trailer.getLong();
+            int trigramCount = trailer.getInt();
+            if (size - TRAILER_BYTES - postingsStart > Integer.MAX_VALUE) {
+                throw new IOException("Index too large to map: " + file);
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+            try (in) {
+                if (in.readInt() != MAGIC || !in.readUTF().equals(root.toString())) {
+                    return null;
+                }
+                int files = in.readInt();
+                String[] paths = new String[files];
+                long[] sizes = new long[files];
+                long[] modified = new long[files];
+                boolean[] text = new boolean[files];
+                for (int id = 0; id < files; id++) {
+                    paths[id] = in.readUTF();
+                    sizes[id] = in.readLong();
+                    modified[id] = in.readLong();
+                    text[id] = in.readBoolean();
+                }
+                MappedByteBuffer postings = channel.map(FileChannel.MapMode.READ_ONLY, postingsStart, size - TRAILER_BYTES - postingsStart);
+                return new Snapshot(paths, sizes, modified, text, postings, tableStart - postingsStart, trigramCount);
+            }
+        }
+    }
+
+    // Walks the directory, reads the files that changed since the last update and writes a new index file
+    private void update() throws IOException {
+        Snapshot old = snapshot;
+        int oldCount = old == null ? 0 : old.paths.length;
+        boolean[] kept = new boolean[oldCount];
+        List<Path> changed = new ArrayList<>();
+        List<BasicFileAttributes> changedAttributes = new ArrayList<>();
+        walk((path, attributes) -> {
+            Integer id = old == null ? null : old.ids.get(root.relativize(path).toString());
+            if (id != null && old.sizes[id] == attributes.size() && old.modified[id] == attributes.lastModifiedTime().toMillis()) {
+                kept[id] = true;
+            } else {
+                changed.add(path);
+                changedAttributes.add(attributes);
+            }
+        }, () -> false);
+        int keptCount = 0;
+        int[] remap = new int[oldCount]; // New id of each old file that is kept, ids keep their order so postings stay sorted
+        for (int id = 0; id < oldCount; id++) {
+            remap[id] = kept[id] ? keptCount++ : -1;
+        }
+        if (old != null && changed.isEmpty() && keptCount == oldCount) {
+            return;
+        }
+        int files = keptCount + changed.size();
+        String[] paths = new String[files];
+        long[] sizes = new long[files];
+        long[] modified = new long[files];
+        boolean[] text = new boolean[files];
+        for (int id = 0; id < oldCount; id++) {
+            if (remap[id] >= 0) {
+                paths[remap[id]] = old.paths[id];
+                sizes[remap[id]] = old.sizes[id];
+                modified[remap[id]] = old.modified[id];
+                text[remap[id]] = old.text[id];
+            }
+        }
+        Files.createDirectories(INDEX_DIRECTORY);
+        Runs runs = new Runs();
+        try {
+            IntSet trigrams = new IntSet();
+            for (int i = 0; i < changed.size(); i++) {
+                int id = keptCount + i;
+                paths[id] = root.relativize(changed.get(i)).toString();
+                sizes[id] = changedAttributes.get(i).size();
+                modified[id] = changedAttributes.get(i).lastModifiedTime().toMillis();
+                trigrams.clear();
+                text[id] = readTrigrams(changed.get(i), trigrams);
+                for (int key : trigrams.toArray()) {
+                    runs.add((long) key << 32 | id);
+                }
+            }
+            Path written = write(paths, sizes, modified, text, old, remap, runs);
+            long version = newestVersion() + 1; // A new name, since the snapshot may still map the file of the last version
+            Files.move(written, indexFile(version), StandardCopyOption.ATOMIC_MOVE);
+            snapshot = load(indexFile(version));
+            deleteVersionsBefore(version);
+        } finally {
+            runs.delete();
+        }
+    }
+
+    // Writes the file table, then the postings of every trigram with the kept files of the old index followed by the
+    // files in the runs, then the trigram table, to a temporary file next to the index
+    private Path write(String[] paths, long[] sizes, long[] modified, boolean[] text, Snapshot old, int[] remap, Runs runs) throws IOException {
+        Path temp = Files.createTempFile(INDEX_DIRECTORY, "index", ".tmp");
+        try (CountingOutput out = new CountingOutput(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(MAGIC);
+            data.writeUTF(root.toString());
+            data.writeInt(paths.length);
+            for (int id = 0; id < paths.length; id++) {
+                data.writeUTF(paths[id]);
+                data.writeLong(sizes[id]);
+                data.writeLong(modified[id]);
+                data.writeBoolean(text[id]);
+            }
+            data.flush();
+            long postingsStart = out.count;
+            int[] keys = new int[1024];
+            int[] counts = new int[1024];
+            long[] offsets = new long[1024];
+            int trigramCount = 0;
+            PriorityQueue<PairSource> sources = new PriorityQueue<>((a, b) -> Long.compare(a.head, b.head)); // Pairs of the files read now
+            for (PairSource run : runs.sources()) {
+                if (run.advance().head != Long.MAX_VALUE) {
+                    sources.add(run);
+                }
+            }
+            int oldTrigrams = old == null ? 0 : old.trigramCount;
+            int entry = 0;
+            while (entry < oldTrigrams || !sources.isEmpty()) { // A trigram at a time, in key order
+                long oldKey = entry < oldTrigrams ? old.key(entry) : Long.MAX_VALUE;
+                long newKey = sources.isEmpty() ? Long.MAX_VALUE : sources.peek().head >>> 32;
+                int key = (int) Math.min(oldKey, newKey);
+                long offset = out.count - postingsStart;
+                int count = 0;
+                int lastId = -1;
+                if (oldKey == key) { // Kept files come first, their ids are all lower than those of the files read now
+                    for (int id : old.ids(entry++)) {
+                        if (remap[id] >= 0) {
+                            writeVarint(out, remap[id] - lastId);
+                            lastId = remap[id];
+                            count++;
+                        }
+                    }
+                }
+                while (!sources.isEmpty() && sources.peek().head >>> 32 == key) {
+                    PairSource source = sources.poll();
+                    int id = (int) source.head;
+                    writeVarint(out, id - lastId);
+                    lastId = id;
+                    count++;
+                    if (source.advance().head != Long.MAX_VALUE) {
+                        sources.add(source);
+                    }
+                }
+                if (count == 0) { // Only files that are gone held it
+                    continue;
+                }
+                if (trigramCount == keys.length) {
+                    keys = Arrays.copyOf(keys, trigramCount * 2);
+                    counts = Arrays.copyOf(counts, trigramCount * 2);
+                    offsets = Arrays.copyOf(offsets, trigramCount * 2);
+                }
+                keys[trigramCount] = key;
+                counts[trigramCount] = count;
+                offsets[trigramCount] = offset;
+                trigramCount++;
+            }
+            long tableStart = out.count;
+            for (int i = 0; i < trigramCount; i++) {
+                data.writeInt(keys[i]);
+                data.writeInt(counts[i]);
+                data.writeLong(offsets[i]);
+            }
+            data.writeLong(postingsStart);
+            data.writeLong(tableStart);
+            data.writeInt(trigramCount);
+            data.flush();
+        } catch (IOException | RuntimeException writeException) {
+            Files.deleteIfExists(temp);
+            throw writeException;
+        }
+        return temp;
+    }
+
+    // Adds the trigrams of a file to trigrams, returning false when it is binary or cannot be read
+    private static boolean readTrigrams(Path path, IntSet trigrams) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer bytes = ByteBuffer.allocate(READ_BYTES);
+            while (bytes.hasRemaining() && channel.read(bytes) != -1) {
+                // Fill the first buffer, which the encoding and binary checks look at
+            }
+            bytes.flip();
+            TextEncoding encoding = FileSearch.textEncoding(bytes, channel.size()); // Told apart the same way as when the file is searched
+            if (encoding == null) {
+                return false;
+            }
+            bytes.position(encoding.bomLength());
+            CharsetDecoder decoder = encoding.newDecoder();
+            CharBuffer chars = CharBuffer.allocate(READ_BYTES + 2);
+            while (true) {
+                boolean endOfInput = bytes.limit() < bytes.capacity() || channel.position() == channel.size();
+                decoder.decode(bytes, chars, endOfInput);
+                if (endOfInput) {
+                    decoder.flush(chars);
+                }
+                chars.flip();
+                addTrigrams(chars, 0, chars.limit(), trigrams);
+                int keep = Math.min(2, chars.limit()); // The last two chars start trigrams that end in the next chunk
+                chars.position(chars.limit() - keep);
+                chars.compact();
+                if (endOfInput) {
+                    return true;
+                }
+                bytes.compact();
+                while (bytes.hasRemaining() && channel.read(bytes) != -1) {
+                    // Fill the buffer
+                }
+                bytes.flip();
+            }
+        } catch (IOException unreadable) {
+            return false;
+        }
+    }
+
+    // Adds the keys of the trigrams of text in [start, end) to keys
+    private static void addTrigrams(CharSequence text, int start, int end, IntSet keys) {
+        if (end - start < 3) {
+            return;
+        }
+        char a = fold(text.charAt(start));
+        char b = fold(text.charAt(start + 1));
+        for (int i = start + 2; i < end; i++) {
+            char c = fold(text.charAt(i));
+            keys.add(key(a, b, c));
+            a = b;
+            b = c;
+        }
+    }
+
+    private static int key(char a, char b, char c) {
+        if ((a | b | c) < 256) {
+            return a << 16 | b << 8 | c;
+        }
+        int hash = (a * 31 + b) * 31 + c;
+        hash ^= hash >>> 15;
+        hash *= 0x2C1B3C6D;
+        hash ^= hash >>> 12;
+        return HASHED_KEY | (hash & (HASHED_KEY - 1));
+    }
+
+    // Same folding as LiteralMatcher, so a case-insensitive match is always among the candidates
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    // Ids in both sorted arrays, written to the front of ids, returning how many there are
+    private static int intersect(int[] ids, int size, int[] other) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < size && j < other.length; i++) {
+            while (j < other.length && other[j] < ids[i]) {
+                j++;
+            }
+            if (j < other.length && other[j] == ids[i]) {
+                ids[kept++] = ids[i];
+            }
+        }
+        return kept;
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private interface FileVisitor {
+        void visit(Path path, BasicFileAttributes attributes);
+    }
+
+    // Visits the regular files under the root the way Find in Files does
+    private void walk(FileVisitor visitor, BooleanSupplier cancelled) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                if (cancelled.getAsBoolean()) {
+                    return FileVisitResult.TERMINATE;
+                }
+                return FileSearch.isSkipped(dir, root) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && attributes.size() > 0) {
+                    visitor.visit(path, attributes);
+                }
+                return cancelled.getAsBoolean() ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException exception) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Sorted stream of (trigram, file id) pairs packed into longs, head is Long.MAX_VALUE once it is used up
+    private abstract static class PairSource {
+        long head;
+
+        abstract PairSource advance() throws IOException;
+    }
+
+    // Pairs of the files read in this update, sorted in memory a run at a time and spilled to temporary files
+    private static final class Runs {
+        private long[] pairs = new long[1024];
+        private int size;
+        private final List<Path> files = new ArrayList<>();
+
+        private void add(long pair) throws IOException {
+            if (size == pairs.length) {
+                if (size < RUN_PAIRS) {
+                    pairs = Arrays.copyOf(pairs, Math.min(size * 2, RUN_PAIRS));
+                } else {
+                    spill();
+                }
+            }
+            pairs[size++] = pair;
+        }
+
+        private void spill() throws IOException {
+            Arrays.sort(pairs, 0, size);
+            Path run = Files.createTempFile(INDEX_DIRECTORY, "run", ".tmp");
+            files.add(run);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 1 << 16))) {
+                for (int i = 0; i < size; i++) {
+                    out.writeLong(pairs[i]);
+                }
+            }
+            size = 0;
+        }
+
+        // One source per spilled run and one for the pairs still in memory
+        private List<PairSource> sources() throws IOException {
+            Arrays.sort(pairs, 0, size);
+            List<PairSource> sources = new ArrayList<>();
+            for (Path run : files) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), 1 << 16));
+                sources.add(new PairSource() {
+                    @Override
+                    PairSource advance() throws IOException {
+                        try {
+                            head = in.readLong();
+                        } catch (EOFException end) {
+                            head = Long.MAX_VALUE;
+                            in.close();
+                        }
+                        return this;
+                    }
+                });
+            }
+            long[] sorted = pairs;
+            int count = size;
+            sources.add(new PairSource() {
+                private int next;
+
+                @Override
+                PairSource advance() {
+                    head = next < count ? sorted[next++] : Long.MAX_VALUE;
+                    return this;
+                }
+            });
+            return sources;
+        }
+
+        private void delete() {
+            for (Path run : files) {
+                try {
+                    Files.deleteIfExists(run);
+                } catch (IOException deleteException) {
+                    deleteException.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Output stream that knows how many bytes went through it
+    private static final class CountingOutput extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        private CountingOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    // Set of ints with open addressing, for the distinct trigrams of one file without boxing them
+    private static final class IntSet {
+        private int[] slots = new int[1024]; // 0 is an empty slot, keys are stored plus one
+        private int size;
+
+        private void add(int key) {
+            if (size * 2 >= slots.length) {
+                int[] old = slots;
+                slots = new int[old.length * 2];
+                size = 0;
+                for (int slot : old) {
+                    if (slot != 0) {
+                        add(slot - 1);
+                    }
+                }
+            }
+            int mask = slots.length - 1;
+            int i = (key * 0x9E3779B9) >>> 7 & mask;
+            while (slots[i] != 0) {
+                if (slots[i] == key + 1) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            slots[i] = key + 1;
+            size++;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private int[] toArray() {
+            int[] keys = new int[size];
+            int count = 0;
+            for (int slot : slots) {
+                if (slot != 0) {
+                    keys[count++] = slot - 1;
+                }
+            }
+            return keys;
+        }
+
+        private void clear() {
+            if (size > 0) {
+                Arrays.fill(slots, 0);
+                size = 0;
+            }
+        }
+    }
+}
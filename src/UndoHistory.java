@@ -0,0 +1,220 @@
+/**
+ * UndoHistory.java
+ *
+ * Undo and redo for the text area. The edits it keeps are the document's own change events, whose content part holds
+ * the affected pieces of the piece table instead of a copy of the text, so even undoing a replace over the whole
+ * document is one cheap step. Consecutive keystrokes on a line are merged into one edit. The history keeps an estimate
+ * of the memory its edits hold on to and forgets the oldest ones once it goes over budget.
+ */
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.UndoableEditEvent;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.CompoundEdit;
+import javax.swing.undo.UndoManager;
+import javax.swing.undo.UndoableEdit;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+public class UndoHistory extends UndoManager {
+    private static final long MEMORY_BUDGET = Long.getLong("texteditor.undoBytes", 32L * 1024 * 1024); // Estimated bytes the history may hold on to
+    private static final int EDIT_BYTES = 64; // Rough cost of an edit itself
+    private static final int ELEMENT_BYTES = 64; // Rough cost of each line element an edit keeps for undo
+
+    private final Map<UndoableEdit, Long> costs = new IdentityHashMap<>(); // Estimated size of each edit in the history
+    private long totalCost;
+    private Document document;
+    private Typing typing; // Run of keystrokes still taking more
+
+    public UndoHistory() {
+        setLimit(Integer.MAX_VALUE); // Bounded by MEMORY_BUDGET instead of a number of edits
+    }
+
+    // Starts recording the edits made to document with an empty history
+    public void follow(Document document) {
+        stop();
+        this.document = document;
+        document.addUndoableEditListener(this);
+    }
+
+    // Stops recording and forgets every edit, for instance while another file is being loaded
+    public void stop() {
+        if (document != null) {
+            document.removeUndoableEditListener(this);
+            document = null;
+        }
+        discardAllEdits();
+    }
+
+    @Override
+    public void undoableEditHappened(UndoableEditEvent e) {
+        UndoableEdit edit = e.getEdit();
+        if (edit instanceof AbstractDocument.DefaultDocumentEvent) {
+            AbstractDocument.DefaultDocumentEvent event = (AbstractDocument.DefaultDocumentEvent) edit;
+            if (event.getLength() == 1 && event.getType() != DocumentEvent.EventType.CHANGE) { // A keystroke, which may join the run before it
+                edit = new Typing(event);
+            }
+        }
+        addEdit(edit);
+    }
+
+    @Override
+    public synchronized boolean addEdit(UndoableEdit anEdit) {
+        UndoableEdit last = lastEdit();
+        if (typing != null && anEdit != typing && !typing.accepts(anEdit)) {
+            typing.end();
+            typing = null;
+        }
+        if (!super.addEdit(anEdit)) {
+            return false;
+        }
+        long cost = cost(anEdit);
+        if (lastEdit() == anEdit) {
+            costs.put(anEdit, cost);
+            if (anEdit instanceof Typing) {
+                typing = (Typing) anEdit;
+            }
+        } else { // Merged into the last edit
+            costs.merge(last, cost, Long::sum);
+        }
+        totalCost += cost;
+        while (totalCost > MEMORY_BUDGET && edits.size() > 1) { // Keep at least the newest edit
+            trimEdits(0, 0);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void undo() throws CannotUndoException {
+        endTyping();
+        super.undo();
+    }
+
+    @Override
+    public synchronized void redo() throws CannotRedoException {
+        endTyping();
+        super.redo();
+    }
+
+    @Override
+    public synchronized boolean canUndo() {
+        return typing != null || super.canUndo(); // A run in progress can be undone once it is ended
+    }
+
+    @Override
+    public synchronized void discardAllEdits() {
+        typing = null;
+        super.discardAllEdits();
+        costs.clear();
+        totalCost = 0;
+    }
+
+    @Override
+    protected void trimEdits(int from, int to) {
+        for (int i = from; i <= to && i < edits.size(); i++) {
+            Long cost = costs.remove(edits.get(i));
+            if (cost != null) {
+                totalCost -= cost;
+            }
+            if (edits.get(i) == typing) {
+                typing = null;
+            }
+        }
+        super.trimEdits(from, to);
+    }
+
+    private void endTyping() {
+        if (typing != null) {
+            typing.end();
+            typing = null;
+        }
+    }
+
+    // Estimated memory held by edit, the text itself only counts for documents that copy it into their undo edits
+    private static long cost(UndoableEdit edit) {
+        if (edit instanceof Typing) {
+            return EDIT_BYTES;
+        }
+        if (edit instanceof PieceTableDocument.Replace) { // Keeps its ranges and their new text for the journal besides its two events
+            PieceTableDocument.Replace replace = (PieceTableDocument.Replace) edit;
+            long cost = replace.getReplacements().memoryBytes();
+            for (UndoableEdit event : replace.getEvents()) {
+                cost += cost(event);
+            }
+            return cost;
+        }
+        if (!(edit instanceof AbstractDocument.DefaultDocumentEvent)) {
+            return EDIT_BYTES;
+        }
+        AbstractDocument.DefaultDocumentEvent event = (AbstractDocument.DefaultDocumentEvent) edit;
+        Document document = event.getDocument();
+        long cost = EDIT_BYTES;
+        DocumentEvent.ElementChange lines = event.getChange(document.getDefaultRootElement());
+        if (lines != null) {
+            cost += (long) ELEMENT_BYTES * (lines.getChildrenAdded().length + lines.getChildrenRemoved().length);
+        }
+        if (!(document instanceof PieceTableDocument)) {
+            cost += 2L * event.getLength();
+        }
+        return cost;
+    }
+
+    // Keystrokes typed or deleted one after the other on the same line, undone together
+    private static final class Typing extends CompoundEdit {
+        private int start; // Document offsets the run covers
+        private int end;
+        private boolean lineEnded; // A typed newline ends the run
+
+        Typing(AbstractDocument.DefaultDocumentEvent keystroke) {
+            boolean insert = keystroke.getType() == DocumentEvent.EventType.INSERT;
+            start = insert ? keystroke.getOffset() : 0; // A run of backspaces may go back as far as it likes
+            end = insert ? keystroke.getOffset() : keystroke.getOffset() + 1;
+            super.addEdit(keystroke);
+            extend(keystroke);
+        }
+
+        // Whether edit continues this run: a character typed at its end or a backspace inside it
+        boolean accepts(UndoableEdit edit) {
+            if (!(edit instanceof Typing) || !isInProgress() || lineEnded) {
+                return false;
+            }
+            AbstractDocument.DefaultDocumentEvent keystroke = ((Typing) edit).keystroke();
+            if (keystroke.getType() == DocumentEvent.EventType.INSERT) {
+                return keystroke.getOffset() == end;
+            }
+            return keystroke.getOffset() == end - 1 && end - 1 >= start;
+        }
+
+        @Override
+        public boolean addEdit(UndoableEdit anEdit) {
+            if (!accepts(anEdit)) {
+                return false;
+            }
+            AbstractDocument.DefaultDocumentEvent keystroke = ((Typing) anEdit).keystroke();
+            super.addEdit(keystroke);
+            extend(keystroke);
+            return true;
+        }
+
+        private AbstractDocument.DefaultDocumentEvent keystroke() {
+            return (AbstractDocument.DefaultDocumentEvent) edits.get(0);
+        }
+
+        private void extend(AbstractDocument.DefaultDocumentEvent keystroke) {
+            if (keystroke.getType() == DocumentEvent.EventType.INSERT) {
+                end++;
+                try {
+                    lineEnded = "\n".equals(keystroke.getDocument().getText(keystroke.getOffset(), 1));
+                } catch (BadLocationException badLocation) {
+                    lineEnded = true;
+                }
+            } else {
+                end--;
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * VirtualTextArea.java
+ *
+ * JTextArea whose text is shown by a VirtualTextView instead of a PlainView, so opening, scrolling and editing a file
+ * of any size only costs as much as the lines on screen. Wrapped text still goes through the regular wrapped view.
+ * Home and End look the line up in the LineIndex, the standard actions find the start and end of a row by measuring
+ * one position after another, which freezes on a long line.
+ */
+
+import javax.swing.*;
+import javax.swing.plaf.basic.BasicTextAreaUI;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.TextAction;
+import javax.swing.text.View;
+import java.awt.event.ActionEvent;
+
+public class VirtualTextArea extends JTextArea {
+
+    public VirtualTextArea(Document document) {
+        super(document);
+        ActionMap actions = getActionMap();
+        actions.put(DefaultEditorKit.beginLineAction, new LineEdgeAction(DefaultEditorKit.beginLineAction, false, false));
+        actions.put(DefaultEditorKit.endLineAction, new LineEdgeAction(DefaultEditorKit.endLineAction, true, false));
+        actions.put(DefaultEditorKit.selectionBeginLineAction, new LineEdgeAction(DefaultEditorKit.selectionBeginLineAction, false, true));
+        actions.put(DefaultEditorKit.selectionEndLineAction, new LineEdgeAction(DefaultEditorKit.selectionEndLineAction, true, true));
+    }
+
+    @Override
+    public void updateUI() {
+        setUI(new VirtualTextAreaUI()); // Keeps the virtual view across look and feel changes
+    }
+
+    private static final class VirtualTextAreaUI extends BasicTextAreaUI {
+        @Override
+        public View create(Element element) {
+            JTextArea textArea = (JTextArea) getComponent();
+            if (textArea.getLineWrap() || Boolean.TRUE.equals(element.getDocument().getProperty("i18n"))) { // Wrapping and bidirectional text need the standard views
+                return super.create(element);
+            }
+            return new VirtualTextView(element);
+        }
+    }
+
+    // Moves the caret to the start or end of its line, extending the selection when select is set
+    private static final class LineEdgeAction extends TextAction {
+        private final boolean end;
+        private final boolean select;
+
+        LineEdgeAction(String name, boolean end, boolean select) {
+            super(name);
+            this.end = end;
+            this.select = select;
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            JTextComponent target = getTextComponent(e);
+            if (target == null) {
+                return;
+            }
+            ActionMap uiActions = target.getActionMap().getParent();
+            if (((JTextArea) target).getLineWrap() && uiActions != null && uiActions.get(getValue(NAME)) != null) { // Rows are not lines when wrapping
+                uiActions.get(getValue(NAME)).actionPerformed(e);
+                return;
+            }
+            LineIndex lines = LineIndex.of(target.getDocument());
+            int line = lines.lineOf(target.getCaretPosition());
+            int offset = end ? lines.lineEnd(line) - 1 : lines.lineStart(line);
+            if (select) {
+                target.moveCaretPosition(offset);
+            } else {
+                target.setCaretPosition(offset);
+            }
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/**
+ * VirtualTextView.java
+ *
+ * Unwrapped plain-text view that never walks the whole document. Its height comes from the line count of the
+ * document's LineIndex and its width from the widest line measured so far, which is only ever the lines painted plus a
+ * few around them, so the horizontal scrollbar grows as wider lines come into view instead of PlainView measuring every
+ * line up front. Painting, hit testing and caret placement look lines up in the LineIndex and only read the text of
+ * the lines involved, which keeps their cost the same whatever the size of the file.
+ *
+ * Lines longer than texteditor.longLineChars (4096 by default) are split into segments of SEGMENT_CHARS chars whose
+ * widths are measured once and cached, so painting, caret placement and clicks only measure the segments they touch
+ * instead of the whole line, and a line of a minified file costs no more to scroll through than any other.
+ */
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.LayeredHighlighter;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.text.TabExpander;
+import javax.swing.text.Utilities;
+import javax.swing.text.View;
+import javax.swing.text.ViewFactory;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class VirtualTextView extends View implements TabExpander {
+    private static final int OVERSCAN_LINES = 32; // Lines above and below the painted ones whose widths are measured ahead of scrolling
+    private static final int LONG_LINE_CHARS = Integer.getInteger("texteditor.longLineChars", 4096); // Longer lines are measured in segments
+    private static final int SEGMENT_CHARS = 1024;
+    private static final int CACHED_LONG_LINES = 16; // Long lines whose segment widths are kept, most recently used first
+
+    private final Segment segment = new Segment(); // Text of the line being painted or measured
+    private Font font;
+    private FontMetrics metrics;
+    private int lineHeight;
+    private int tabSize; // Tab width in pixels
+    private int tabBase; // Left edge of the text, tab stops are counted from it
+    private int widest; // Width of the widest line measured so far
+    private final List<LongLine> longLines = new ArrayList<>();
+
+    public VirtualTextView(Element element) {
+        super(element);
+    }
+
+    @Override
+    public float getPreferredSpan(int axis) {
+        updateMetrics();
+        if (axis == View.X_AXIS) {
+            return widest + 1; // Room for the caret after the last character
+        }
+        return (float) lines().lineCount() * lineHeight;
+    }
+
+    @Override
+    public void paint(Graphics g, Shape a) {
+        updateMetrics();
+        Rectangle alloc = a.getBounds();
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = alloc;
+        }
+        tabBase = alloc.x;
+        LineIndex lines = lines();
+        int first = Math.max(0, (clip.y - alloc.y) / lineHeight);
+        int last = Math.min(lines.lineCount() - 1, (clip.y + clip.height - alloc.y) / lineHeight);
+        Graphics2D g2 = (Graphics2D) g;
+        Map<?, ?> hints = (Map<?, ?>) Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+        if (hints != null) {
+            g2.addRenderingHints(hints); // Antialias text the way the desktop does
+        }
+        g2.setFont(font);
+        JTextComponent host = (JTextComponent) getContainer();
+        Color foreground = host.isEnabled() ? host.getForeground() : host.getDisabledTextColor();
+        Color selected = host.getSelectedTextColor();
+        int selectionStart = host.getSelectionStart();
+        int selectionEnd = host.getSelectionEnd();
+        Highlighter highlighter = host.getHighlighter();
+        int measuredWidest = widest;
+        for (int line = first; line <= last; line++) {
+            int start = lines.lineStart(line);
+            int end = lines.lineEnd(line) - 1; // Leave out the newline
+            if (highlighter instanceof LayeredHighlighter) { // The selection is painted by the view, line by line
+                ((LayeredHighlighter) highlighter).paintLayeredHighlights(g, start, end, alloc, host, this);
+            }
+            float y = alloc.y + line * lineHeight + metrics.getAscent();
+            float x;
+            if (end - start > LONG_LINE_CHARS) { // Only the segments inside the clip
+                LongLine longLine = longLine(start, end);
+                for (int segment = longLine.segmentAt(clip.x - alloc.x); segment < longLine.segmentCount(); segment++) {
+                    double segmentX = longLine.segmentStart(segment);
+                    if (alloc.x + segmentX >= clip.x + clip.width) {
+                        break;
+                    }
+                    int segmentStart = start + segment * SEGMENT_CHARS;
+                    int shift = shiftFor(segmentX);
+                    g2.translate(shift, 0);
+                    draw(g2, segmentStart, Math.min(end, segmentStart + SEGMENT_CHARS), (float) (alloc.x + segmentX - shift), y, foreground, selected, selectionStart, selectionEnd);
+                    g2.translate(-shift, 0);
+                }
+                x = (float) (alloc.x + longLine.width());
+            } else {
+                x = draw(g2, start, end, alloc.x, y, foreground, selected, selectionStart, selectionEnd);
+            }
+            measuredWidest = Math.max(measuredWidest, (int) Math.ceil(x) - alloc.x);
+        }
+        for (int line = Math.max(0, first - OVERSCAN_LINES); line <= Math.min(lines.lineCount() - 1, last + OVERSCAN_LINES); line++) {
+            if (line < first || line > last) {
+                measuredWidest = Math.max(measuredWidest, lineWidth(lines, line));
+            }
+        }
+        if (measuredWidest > widest) { // A wider line came into view, the scrollbar has to grow
+            widest = measuredWidest;
+            preferenceChanged(null, true, false);
+        }
+    }
+
+    @Override
+    public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+        Document document = getDocument();
+        if (pos < 0 || pos > document.getLength()) {
+            throw new BadLocationException("Invalid position", pos);
+        }
+        updateMetrics();
+        Rectangle alloc = a.getBounds();
+        tabBase = alloc.x;
+        LineIndex lines = lines();
+        int line = lines.lineOf(pos);
+        int start = lines.lineStart(line);
+        int end = lines.lineEnd(line) - 1;
+        double x = 0;
+        if (end - start > LONG_LINE_CHARS) { // Measure from the start of the segment holding pos
+            LongLine longLine = longLine(start, end);
+            int segmentIndex = (pos - start) / SEGMENT_CHARS;
+            x = longLine.segmentStart(segmentIndex);
+            start += segmentIndex * SEGMENT_CHARS;
+        }
+        document.getText(start, pos - start, segment);
+        x += Utilities.getTabbedTextWidth(segment, metrics, (float) (alloc.x + x - shiftFor(x)), this, start);
+        return new Rectangle(alloc.x + (int) x, alloc.y + line * lineHeight, 1, lineHeight);
+    }
+
+    @Override
+    public int viewToModel(float fx, float fy, Shape a, Position.Bias[] bias) {
+        bias[0] = Position.Bias.Forward;
+        updateMetrics();
+        Rectangle alloc = a.getBounds();
+        tabBase = alloc.x;
+        LineIndex lines = lines();
+        if (fy < alloc.y) {
+            return getStartOffset();
+        }
+        int line = (int) ((fy - alloc.y) / lineHeight);
+        if (line >= lines.lineCount()) {
+            return getDocument().getLength();
+        }
+        int start = lines.lineStart(line);
+        int end = lines.lineEnd(line) - 1;
+        if (fx < alloc.x) {
+            return start;
+        }
+        double x0 = 0;
+        if (end - start > LONG_LINE_CHARS) { // Only the segment under fx is searched
+            LongLine longLine = longLine(start, end);
+            int segmentIndex = longLine.segmentAt(fx - alloc.x);
+            x0 = longLine.segmentStart(segmentIndex);
+            start += segmentIndex * SEGMENT_CHARS;
+            end = Math.min(end, start + SEGMENT_CHARS);
+        }
+        try {
+            getDocument().getText(start, end - start, segment);
+        } catch (BadLocationException badLocation) {
+            return start;
+        }
+        int shift = shiftFor(x0);
+        return start + Utilities.getTabbedTextOffset(segment, metrics, (float) (alloc.x + x0 - shift), fx - shift, this, start, true);
+    }
+
+    // Moves up and down by looking the neighbouring line up in the LineIndex. View's own implementation finds the start
+    // of the current row by measuring one position after another, which on a long line never finishes
+    @Override
+    public int getNextVisualPositionFrom(int pos, Position.Bias b, Shape a, int direction, Position.Bias[] biasRet) throws BadLocationException {
+        if (pos < 0 || (direction != NORTH && direction != SOUTH)) {
+            return super.getNextVisualPositionFrom(pos, b, a, direction, biasRet);
+        }
+        LineIndex lines = lines();
+        int line = lines.lineOf(pos) + (direction == NORTH ? -1 : 1);
+        if (line < 0 || line >= lines.lineCount()) {
+            return -1; // Nowhere to go, the caret stays
+        }
+        Point magicCaret = ((JTextComponent) getContainer()).getCaret().getMagicCaretPosition();
+        float x = magicCaret != null ? magicCaret.x : modelToView(pos, a, b).getBounds().x;
+        Rectangle alloc = a.getBounds();
+        return viewToModel(x, alloc.y + line * lineHeight + lineHeight / 2f, a, biasRet);
+    }
+
+    @Override
+    public float nextTabStop(float x, int tabOffset) {
+        if (tabSize == 0) {
+            return x;
+        }
+        int tabs = ((int) x - tabBase) / tabSize;
+        return tabBase + (tabs + 1) * tabSize;
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        damage(e, a);
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        damage(e, a);
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        font = null; // Font or tab size may have changed, measure again
+        widest = 0;
+        longLines.clear();
+        preferenceChanged(null, true, true);
+        getContainer().repaint();
+    }
+
+    // Repaints the edited line, or everything below it when lines were added or removed. Uses the event's own line
+    // changes, since the LineIndex may not have seen the event yet
+    private void damage(DocumentEvent e, Shape a) {
+        Component host = getContainer();
+        if (a == null || host == null) {
+            return;
+        }
+        updateMetrics();
+        for (LongLine longLine : longLines) {
+            longLine.invalidate(e.getOffset());
+        }
+        Rectangle alloc = a.getBounds();
+        Element root = getElement();
+        int line = root.getElementIndex(e.getOffset());
+        if (e.getChange(root) != null) {
+            preferenceChanged(null, false, true);
+            host.repaint(alloc.x, alloc.y + line * lineHeight, alloc.width, alloc.height - line * lineHeight);
+        } else {
+            host.repaint(alloc.x, alloc.y + line * lineHeight, alloc.width, lineHeight);
+        }
+    }
+
+    // Draws the text in [start, end) at x with its selected part in the selected text color and returns where it ends
+    private float draw(Graphics2D g, int start, int end, float x, float y, Color foreground, Color selected, int selectionStart, int selectionEnd) {
+        if (selectionStart < selectionEnd && selectionStart < end && selectionEnd > start) {
+            int from = Math.max(start, selectionStart);
+            int to = Math.min(end, selectionEnd);
+            x = draw(g, start, from, x, y, foreground);
+            x = draw(g, from, to, x, y, selected != null ? selected : foreground);
+            return draw(g, to, end, x, y, foreground);
+        }
+        return draw(g, start, end, x, y, foreground);
+    }
+
+    // Draws the text in [start, end) at x and returns where it ends
+    private float draw(Graphics2D g, int start, int end, float x, float y, Color color) {
+        if (start >= end) {
+            return x;
+        }
+        try {
+            getDocument().getText(start, end - start, segment);
+        } catch (BadLocationException badLocation) {
+            return x;
+        }
+        g.setColor(color);
+        return Utilities.drawTabbedText(segment, x, y, g, this, start);
+    }
+
+    private int lineWidth(LineIndex lines, int line) {
+        int start = lines.lineStart(line);
+        int end = lines.lineEnd(line) - 1;
+        if (end - start > LONG_LINE_CHARS) {
+            return (int) Math.ceil(longLine(start, end).width());
+        }
+        try {
+            getDocument().getText(start, end - start, segment);
+        } catch (BadLocationException badLocation) {
+            return 0;
+        }
+        return (int) Math.ceil(Utilities.getTabbedTextWidth(segment, metrics, (float) tabBase, this, start));
+    }
+
+    // Whole tab widths to move text that is x along a long line back towards the left edge before measuring or drawing
+    // it. Text far along a long line would otherwise be laid out in float coordinates too large to place each char
+    // exactly, and shifting by whole tabs keeps the tab stops where they were
+    private int shiftFor(double x) {
+        long shift = (long) x;
+        return (int) (tabSize > 0 ? shift - shift % tabSize : shift);
+    }
+
+    // Segment widths of the line [start, end), moved to the front of the cache
+    private LongLine longLine(int start, int end) {
+        for (int i = 0; i < longLines.size(); i++) {
+            LongLine longLine = longLines.get(i);
+            if (longLine.start.getOffset() == start) {
+                longLines.add(0, longLines.remove(i));
+                longLine.setLength(end - start);
+                return longLine;
+            }
+        }
+        LongLine longLine;
+        try {
+            longLine = new LongLine(getDocument().createPosition(start), end - start);
+        } catch (BadLocationException badLocation) {
+            throw new IllegalStateException(badLocation);
+        }
+        longLines.add(0, longLine);
+        if (longLines.size() > CACHED_LONG_LINES) {
+            longLines.remove(longLines.size() - 1);
+        }
+        return longLine;
+    }
+
+    private LineIndex lines() {
+        return LineIndex.of(getDocument());
+    }
+
+    private void updateMetrics() {
+        Component host = getContainer();
+        Font hostFont = host.getFont();
+        Integer tabSizeProperty = (Integer) getDocument().getProperty(PlainDocument.tabSizeAttribute);
+        if (font != hostFont || metrics == null) {
+            font = hostFont;
+            metrics = host.getFontMetrics(font);
+            lineHeight = metrics.getHeight();
+            widest = 0;
+            longLines.clear();
+        }
+        tabSize = (tabSizeProperty != null ? tabSizeProperty : 8) * metrics.charWidth('m');
+    }
+
+    // A long line split into segments of SEGMENT_CHARS chars. Segment widths are measured left to right as far as they
+    // are needed and kept until an edit inside the line invalidates them from the edited segment on
+    private final class LongLine {
+        final Position start; // Follows the line through edits before it
+        int length;
+        double[] ends = new double[0]; // ends[i] is where segment i ends, relative to the left edge of the text
+        int measured; // Segments whose end is known
+
+        LongLine(Position start, int length) {
+            this.start = start;
+            setLength(length);
+        }
+
+        void setLength(int length) {
+            this.length = length;
+            ends = Arrays.copyOf(ends, segmentCount());
+            measured = Math.min(measured, length / SEGMENT_CHARS); // A partial last segment may have grown
+        }
+
+        int segmentCount() {
+            return Math.max(1, (length + SEGMENT_CHARS - 1) / SEGMENT_CHARS);
+        }
+
+        double segmentStart(int index) {
+            if (index == 0) {
+                return 0;
+            }
+            measureThrough(Math.min(index, segmentCount()) - 1);
+            return ends[Math.min(index, segmentCount()) - 1];
+        }
+
+        // The segment under x, measuring up to it if needed
+        int segmentAt(double x) {
+            int index = Arrays.binarySearch(ends, 0, measured, x);
+            index = index < 0 ? -index - 1 : index + 1;
+            while (index == measured && measured < segmentCount()) {
+                measureThrough(measured);
+                if (ends[index] > x) {
+                    break;
+                }
+                index++;
+            }
+            return Math.min(index, segmentCount() - 1);
+        }
+
+        // Width measured so far, with the rest of the line estimated from the average width of the measured chars
+        double width() {
+            if (measured == 0) {
+                measureThrough(0);
+            }
+            int measuredChars = Math.min(length, measured * SEGMENT_CHARS);
+            double measuredWidth = ends[measured - 1];
+            return measuredWidth + (length - measuredChars) * measuredWidth / Math.max(1, measuredChars);
+        }
+
+        void invalidate(int offset) {
+            int relative = offset - start.getOffset();
+            if (relative >= 0 && relative <= length) {
+                measured = Math.min(measured, relative / SEGMENT_CHARS);
+            }
+        }
+
+        private void measureThrough(int index) {
+            int lineStart = start.getOffset();
+            for (; measured <= index; measured++) {
+                int segmentStart = measured * SEGMENT_CHARS;
+                double x = measured == 0 ? 0 : ends[measured - 1];
+                try {
+                    getDocument().getText(lineStart + segmentStart, Math.min(length, segmentStart + SEGMENT_CHARS) - segmentStart, segment);
+                } catch (BadLocationException badLocation) {
+                    throw new IllegalStateException(badLocation);
+                }
+                ends[measured] = x + Utilities.getTabbedTextWidth(segment, metrics, (float) (tabBase + x - shiftFor(x)), VirtualTextView.this, lineStart + segmentStart);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * WatchdogCharSequence.java
+ *
+ * Wraps the text a regex runs over and, every few thousand characters the matcher reads, checks whether the search was
+ * cancelled or ran past its deadline. Since a backtracking matcher reads characters all the time, even a catastrophic
+ * pattern such as (a+)+b is stopped within moments of running out of time. A search without a deadline, which only
+ * its user can stop, never reads the clock at all.
+ */
+
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+public class WatchdogCharSequence implements CharSequence {
+    private static final int CHECK_INTERVAL = 4096; // Reading the clock on every charAt would slow matching down
+
+    private final CharSequence text;
+    private final boolean timed; // Whether deadline applies
+    private final long deadline; // In System.nanoTime units
+    private final BooleanSupplier cancelled;
+    private int countdown = CHECK_INTERVAL; // Not shared between threads, every matcher gets its own wrapper
+
+    public WatchdogCharSequence(CharSequence text, long deadline, BooleanSupplier cancelled) {
+        this(text, true, deadline, cancelled);
+    }
+
+    // Watches only for cancellation
+    public WatchdogCharSequence(CharSequence text, BooleanSupplier cancelled) {
+        this(text, false, 0, cancelled);
+    }
+
+    private WatchdogCharSequence(CharSequence text, boolean timed, long deadline, BooleanSupplier cancelled) {
+        this.text = text;
+        this.timed = timed;
+        this.deadline = deadline;
+        this.cancelled = cancelled;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (--countdown == 0) {
+            countdown = CHECK_INTERVAL;
+            if (cancelled.getAsBoolean()) {
+                throw new CancellationException();
+            }
+            if (timed && System.nanoTime() - deadline > 0) {
+                throw new SearchTimeoutException();
+            }
+        }
+        return text.charAt(index);
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) { // Only used to extract matched groups, which needs no watching
+        return text.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+
+    // Thrown when a search runs past its deadline
+    public static class SearchTimeoutException extends RuntimeException {
+        public SearchTimeoutException() {
+            super("Search ran out of time");
+        }
+    }
+}